@@ -0,0 +1,24 @@
+#!/bin/bash
+# 优化的回归检查：用默认的优化编译这里的每个 .c0，把 --generate 输出的指令清单和同名的 .expected 比较
+#   ./check.sh            检查全部
+#   ./check.sh --update   按现在的编译器重新生成 .expected，改了优化之后逐个看过差别再提交
+# 每个 .c0 开头的注释说明它覆盖的优化和运行时的输出
+set -e
+here=$(cd "$(dirname "$0")" && pwd)
+work=$(mktemp -d)
+trap 'rm -rf "$work"' EXIT
+javac -encoding UTF-8 -d "$work/classes" $(find "$here/../../src" -name '*.java')
+status=0
+for program in "$here"/*.c0; do
+    name=$(basename "$program" .c0)
+    java -cp "$work/classes" App --generate "$program" "$work/$name.o0" > "$work/$name.listing"
+    if [ "$1" == "--update" ]; then
+        cp "$work/$name.listing" "$here/$name.expected"
+    elif diff -u "$here/$name.expected" "$work/$name.listing"; then
+        echo "ok $name"
+    else
+        echo "FAILED $name"
+        status=1
+    fi
+done
+exit $status
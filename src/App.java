@@ -1,59 +1,32 @@
 import java.io.*;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Scanner;
+import java.nio.file.Path;
+import java.util.Arrays;
 
 //import analyser.Analyser;
-import analyser.Analyser;
+import driver.BatchCompiler;
+import driver.CompileServer;
+import driver.Driver;
+import driver.WatchCompiler;
 import error.CompileError;
-import generator.Generator;
-import instruction.Instruction;
-import tokenizer.StringIter;
-import tokenizer.Token;
-import tokenizer.TokenType;
-import tokenizer.Tokenizer;
 
 
 public class App {
-    public static void main(String[] args) throws CompileError, IOException {
-        File input = new File(args[1]);
-        DataOutputStream dos = new DataOutputStream(new FileOutputStream(args[2]));
-        Scanner scanner;
-        scanner = new Scanner(input);
-        var iter = new StringIter(scanner);
-        var tokenizer = tokenize(iter);
-        var tokens = new ArrayList<Token>();
-        if(args[0].equals("--tokenize")){
-            try {
-                while (true) {
-                    var token = tokenizer.nextToken();
-                    if (token.getTokenType().equals(TokenType.EOF)) {
-                        break;
-                    }
-                    tokens.add(token);
-                    System.out.println(token.toString());
-                }
-            } catch (Exception e) {
-                // 遇到错误不输出，直接退出
-                System.err.println(e);
-                System.exit(0);
-                return;
-            }
+    public static void main(String[] args) throws CompileError, IOException, InterruptedException {
+        if (args.length > 0 && args[0].equals("--serve")) {
+            // --serve [--port N]：常驻的编译服务器，协议见 CompileServer
+            CompileServer.main(Arrays.asList(args).subList(1, args.length));
+            return;
         }
-        else if(args[0].equals("--analyse")){
-            var analyzer = new Analyser(tokenizer);
-            List<Instruction> instructions;
-            analyzer.analyse();
+        if (args.length > 0 && args[0].equals("--generate-batch")) {
+            // --generate-batch 清单文件 [--jobs N]：一次编译清单里的所有文件，格式见 BatchCompiler
+            int status = BatchCompiler.main(Arrays.asList(args).subList(1, args.length), System.out, System.err);
+            System.exit(status);
         }
-        else if(args[0].equals("--generate")){
-            var analyzer = new Analyser(tokenizer);
-            analyzer.analyse();
-            var generator=new Generator(dos,analyzer);
-            generator.generateo0();
+        if (args.length > 0 && args[0].equals("--watch")) {
+            // --watch 输入文件 输出文件：文件变了就增量地重新编译，见 WatchCompiler
+            WatchCompiler.main(Arrays.asList(args).subList(1, args.length), System.err);
+            return;
         }
-    }
-    private static Tokenizer tokenize(StringIter iter) {
-        var tokenizer = new Tokenizer(iter);
-        return tokenizer;
+        Driver.compile(Arrays.asList(args), Path.of(""), System.out, System.err);
     }
 }
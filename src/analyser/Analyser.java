@@ -1,68 +1,159 @@
 package analyser;
 import error.*;
 import instruction.*;
+import optimizer.ConstantFolding;
+import optimizer.Pass;
 import tokenizer.*;
+import util.LineIndex;
 
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 public final class Analyser {
+    /** 函数体加起来的 token 数比这个少时，第二遍就在当前线程里顺序做 */
+    public static final int MIN_PARALLEL = 1 << 13;
 
     Tokenizer tokenizer;
+    TokenBuffer tokens;
+    NameTable names;
     ArrayList<Instruction> cuinstructions;
-    public SymbolTable _startTable=new SymbolTable();
+    public SymbolTable _startTable;
     public SymbolEntry _start;
     public SymbolEntry cufn=null;
     public SymbolEntry main=null;
-    public SymbolTable globalTable=new SymbolTable();
-    private SymbolTable fnTable=_startTable;
-    private SymbolTable varTable=globalTable;
+    public SymbolTable globalTable;
+    private SymbolTable fnTable;
+    private SymbolTable varTable;
     private SymbolTable paraTable =null;
     int stack=0;
     int stackTop=0;
     List <String> libs=Arrays.asList("getint","getdouble","getchar","putint","putdouble","putchar","putstr","putln");
-    /** 当前偷看的 token */
-    Token peekedToken = null;
+    // 标准库函数在 libs 里的下标
+    private static final int GETINT=0, GETDOUBLE=1, GETCHAR=2, PUTINT=3, PUTDOUBLE=4, PUTCHAR=5, PUTSTR=6, PUTLN=7;
+    /** 标准库函数名的 id，和 libs 一一对应 */
+    private final int[] libIds;
+    private final int mainId;
+    /** 第二遍分析的函数，第一遍时是 null */
+    private final FunctionUnit unit;
+    /** 字符串字面量的常量池，整个程序共用一个 */
+    private final ConstantPool constants;
+    /** 增量编译时上一次的函数体结果，没有就是 null */
+    private FunctionCache functionCache=null;
+    /** 每个函数分析完之后对它的指令做的优化 */
+    private List<Pass> passes=Pass.DEFAULT;
+    private ForkJoinPool pool=ForkJoinPool.commonPool();
+    private int minParallel=MIN_PARALLEL;
 
     public Analyser(Tokenizer tokenizer) throws AnalyzeError {
+        this(tokenizer, null, new NameTable());
+    }
+
+    public Analyser(TokenBuffer tokens) throws AnalyzeError {
+        this(null, tokens, tokens.names());
+    }
+
+    private Analyser(Tokenizer tokenizer, TokenBuffer tokens, NameTable names) throws AnalyzeError {
         this.tokenizer = tokenizer;
+        this.tokens = tokens;
+        this.names = names;
+        this.unit = null;
+        this._startTable=new SymbolTable();
+        this.globalTable=new SymbolTable();
+        this.fnTable=_startTable;
+        this.varTable=globalTable;
+        this.constants=new ConstantPool(globalTable);
         this.cuinstructions=new ArrayList<>();
-        this._start=new SymbolEntry(null,false,fnTable.getNextVariableOffset(),SymbolKind.FN,
+        this._start=new SymbolEntry(null,-1,false,fnTable.getNextVariableOffset(),SymbolKind.FN,
                 IdentType.VOID,null,null,0,this.cuinstructions,null);
-        fnTable.addSymbol(_start,null);
-        for(String lib:libs){
-            globalTable.addSymbol(new SymbolEntry(lib,true,globalTable.getNextVariableOffset(),SymbolKind.CONST,IdentType.STRING,lib),null);
+        fnTable.addSymbol(_start,LineIndex.NONE);
+        this.libIds=new int[libs.size()];
+        for(int i=0;i<libs.size();i++){
+            String lib=libs.get(i);
+            libIds[i]=names.intern(lib);
+            int offset=globalTable.getNextVariableOffset();
+            globalTable.addSymbol(new SymbolEntry(lib,libIds[i],true,offset,SymbolKind.CONST,IdentType.STRING,lib),LineIndex.NONE);
+            constants.add(lib,offset);
         }
+        this.mainId=names.intern("main");
+    }
+
+    /**
+     * 第二遍分析一个函数体用的分析器，符号表和整个程序的分析器共用，
+     * 当前函数、局部变量表和读取位置是自己的
+     */
+    private Analyser(Analyser program, FunctionUnit unit) {
+        this.tokenizer = null;
+        this.tokens = program.tokens.fork(unit.body);
+        this.names = program.names;
+        this.unit = unit;
+        this._startTable=program._startTable;
+        this._start=program._start;
+        this.main=program.main;
+        this.globalTable=program.globalTable;
+        this.constants=program.constants;
+        this.passes=program.passes;
+        this.fnTable=program.fnTable;
+        this.libIds=program.libIds;
+        this.mainId=program.mainId;
+        this.cufn=unit.fn;
+        this.cuinstructions=unit.fn.getInstruction();
+        this.varTable=unit.fn.getLoc();
+    }
+
+    /**
+     * 用 cache 里上一次编译的结果跳过没有变过的函数体，分析完之后 cache 里换成这一次的结果
+     */
+    public void setFunctionCache(FunctionCache cache) {
+        this.functionCache = cache;
+    }
+
+    /**
+     * 换掉分析完每个函数之后运行的优化，传空列表时不优化
+     */
+    public void setPasses(List<Pass> passes) {
+        this.passes = passes;
+    }
+
+    /**
+     * 同 analyse()，第二遍用给定的线程池，函数体加起来少于 minParallel 个 token 时不开线程
+     */
+    public void analyse(ForkJoinPool pool, int minParallel) throws CompileError {
+        this.pool = pool;
+        this.minParallel = minParallel;
+        analyse();
     }
 
     public void analyse() throws CompileError {
-        analyseProgram();
+        if (tokens == null) {
+            tokens = TokenBuffer.tokenize(tokenizer, names);
+        }
+        try {
+            analyseProgram();
+        } catch (AnalyzeError e) {
+            // 符号表报错时只知道偏移，在这里换算成行号列号
+            throw e.resolve(tokens.lines());
+        }
     }
 
+    // 下面几个方法里的 token 都是它在 TokenBuffer 里的下标
+
     /**
-     * 查看下一个 Token
+     * 查看下一个 Token 的类型
      *
-     * @return Token
+     * @return TokenType
      */
-    private Token peek() throws TokenizeError {
-        if (peekedToken == null) {
-            peekedToken = tokenizer.nextToken();
-        }
-        return peekedToken;
+    private TokenType peek() throws TokenizeError {
+        return tokens.peek();
     }
 
     /**
      * 获取下一个 Token
      * 
-     * @return Token
+     * @return Token 的下标
      */
-    private Token next() throws TokenizeError {
-        if (peekedToken != null) {
-            var token = peekedToken;
-            peekedToken = null;
-            return token;
-        } else {
-            return tokenizer.nextToken();
-        }
+    private int next() throws TokenizeError {
+        return tokens.advance();
     }
 
     /**
@@ -72,22 +163,20 @@ public final class Analyser {
      * @return Token
      */
     private boolean check(TokenType tt) throws TokenizeError {
-        var token = peek();
-        return token.getTokenType() == tt;
+        return tokens.peek() == tt;
     }
 
     /**
      * 如果下一个 token 的类型是 tt，则前进一个 token 并返回这个 token
      * 
      * @param tt 类型
-     * @return 如果匹配则返回这个 token，否则返回 null
+     * @return 如果匹配则返回这个 token 的下标，否则返回 -1
      */
-    private Token nextIf(TokenType tt) throws TokenizeError {
-        var token = peek();
-        if (token.getTokenType() == tt) {
+    private int nextIf(TokenType tt) throws TokenizeError {
+        if (tokens.peek() == tt) {
             return next();
         } else {
-            return null;
+            return -1;
         }
     }
 
@@ -95,16 +184,36 @@ public final class Analyser {
      * 如果下一个 token 的类型是 tt，则前进一个 token 并返回，否则抛出异常
      * 
      * @param tt 类型
-     * @return 这个 token
+     * @return 这个 token 的下标
      * @throws CompileError 如果类型不匹配
      */
 
-    private Token expect(TokenType tt) throws CompileError {
-        var token = peek();
-        if (token.getTokenType() == tt) {
+    private int expect(TokenType tt) throws CompileError {
+        if (tokens.peek() == tt) {
             return next();
         } else {
-            throw new ExpectedTokenError(tt, token);
+            throw new ExpectedTokenError(tt, tokens.token(tokens.index()));
+        }
+    }
+
+    /**
+     * 能开始一条语句的 token
+     */
+    private static boolean isStatementStart(TokenType tt) {
+        switch (tt) {
+            case IF_KW:
+            case WHILE_KW:
+            case RETURN_KW:
+            case SEMICOLON:
+            case MINUS:
+            case IDENT:
+            case LET_KW:
+            case CONST_KW:
+            case CONTINUE_KW:
+            case BREAK_KW:
+                return true;
+            default:
+                return false;
         }
     }
 
@@ -117,14 +226,42 @@ public final class Analyser {
         expect(TokenType.EOF);
     }
 
+    /**
+     * 分两遍分析：第一遍顺序读全局变量和所有函数的签名，函数体只找到它的范围；
+     * 第二遍对每个函数体做类型检查、生成指令，函数体之间互不影响，可以并行
+     * <p>
+     * 报错的先后和一遍读完时一样：先报前面函数体里的错误，再报第一遍停下来的地方的错误
+     */
     private void analyseMain() throws CompileError {
         while(check(TokenType.CONST_KW)||check(TokenType.LET_KW) ){
             analyseDeclaration();
         }
-        while (check(TokenType.FN_KW)) {
-            analyseFunction();
+        ArrayList<FunctionUnit> units=new ArrayList<>();
+        CompileError stop=null;
+        RuntimeException failure=null;
+        try {
+            while (check(TokenType.FN_KW)) {
+                FunctionUnit unit=analyseFunction();
+                units.add(unit);
+                if(!skipFunctionBody(unit)){
+                    // 函数体不完整，错误由第二遍报出来
+                    break;
+                }
+            }
+        } catch (CompileError e) {
+            stop=e;
+        } catch (RuntimeException e) {
+            failure=e;
+        }
+        boolean complete=stop==null&&failure==null&&(units.isEmpty()||units.get(units.size()-1).end>=0);
+        analyseFunctionBodies(units,complete);
+        if(stop!=null){
+            throw stop;
         }
-
+        if(failure!=null){
+            throw failure;
+        }
+        optimize(_start.getInstruction());
     }
     private void analyseDeclaration() throws CompileError{
         if(check(TokenType.CONST_KW)){
@@ -134,29 +271,29 @@ public final class Analyser {
             analyseLetDeclaration();
         }
         else{
-            throw new ExpectedTokenError(List.of(TokenType.CONST_KW,TokenType.LET_KW), next());
+            throw new ExpectedTokenError(List.of(TokenType.CONST_KW,TokenType.LET_KW),tokens.token(next()));
         }
 
     }
     private void analyseLetDeclaration() throws CompileError{
-        if(nextIf(TokenType.LET_KW)!=null){
+        if(nextIf(TokenType.LET_KW)!=-1){
             var nameToken = expect(TokenType.IDENT);
             IdentType type = null;
-            SymbolEntry symbol=new SymbolEntry((String)nameToken.getValue(),false,varTable.getNextVariableOffset(),SymbolKind.LET
+            SymbolEntry symbol=new SymbolEntry(tokens.text(nameToken),tokens.symbol(nameToken),false,varTable.getNextVariableOffset(),SymbolKind.LET
                     ,IdentType.INT,0L);
             expect(TokenType.COLON);
             if(check(TokenType.DOUBLE)||check(TokenType.INT)){
-                if(nextIf(TokenType.DOUBLE)!=null){
+                if(nextIf(TokenType.DOUBLE)!=-1){
                     type=IdentType.DOUBLE;
                     symbol.setType(IdentType.DOUBLE);
                 }
-                else if(nextIf(TokenType.INT)!=null){
+                else if(nextIf(TokenType.INT)!=-1){
                     type=IdentType.INT;
                     symbol.setType(IdentType.INT);
                 }
             }
             else {
-                throw new ExpectedTokenError(List.of(TokenType.DOUBLE,TokenType.INT),next());
+                throw new ExpectedTokenError(List.of(TokenType.DOUBLE,TokenType.INT),tokens.token(next()));
             }
 
             if(check(TokenType.ASSIGN)){
@@ -172,30 +309,30 @@ public final class Analyser {
 
                 IdentType expressionType=analyseExpression();
                 if(expressionType!=type){
-                    throw new Error("wrong type at"+next().getStartPos());
+                    throw new Error("wrong type at"+tokens.getStartPos(next()));
                 }
                 cuinstructions.add(new Instruction(Operation.stroe64));
             }
             expect(TokenType.SEMICOLON);
 
-            varTable.addSymbol(symbol,nameToken.getStartPos());
+            varTable.addSymbol(symbol,tokens.startPos(nameToken));
         }
     }
     private void analyseConstantDeclaration() throws CompileError {
-        if (nextIf(TokenType.CONST_KW) != null) {
+        if (nextIf(TokenType.CONST_KW) != -1) {
             var nameToken = expect(TokenType.IDENT);
             IdentType type=null;
             expect(TokenType.COLON);
             if(check(TokenType.DOUBLE)||check(TokenType.INT)){
-                if(nextIf(TokenType.DOUBLE)!=null){
+                if(nextIf(TokenType.DOUBLE)!=-1){
                     type=IdentType.DOUBLE;
                 }
-                else if(nextIf(TokenType.INT)!=null){
+                else if(nextIf(TokenType.INT)!=-1){
                     type=IdentType.INT;
                 }
             }
             expect(TokenType.ASSIGN);
-            SymbolEntry symbol=new SymbolEntry((String)nameToken.getValue(),true,varTable.getNextVariableOffset(),SymbolKind.CONST
+            SymbolEntry symbol=new SymbolEntry(tokens.text(nameToken),tokens.symbol(nameToken),true,varTable.getNextVariableOffset(),SymbolKind.CONST
                     ,type,0L);
             long off=symbol.getStackOffset();
             if(varTable.isStart()){
@@ -204,18 +341,27 @@ public final class Analyser {
             else{
                 cuinstructions.add(new Instruction(Operation.loca ,off));
             }
+            int start=cuinstructions.size();
             IdentType expressionType=analyseExpression();
+            // 初始值是常量表达式时记下它的值，读这个常量的地方直接压栈；
+            // 这算优化的一部分，没有 passes（--no-optimize）时照常从内存里读
+            if(!passes.isEmpty()){
+                symbol.setConstant(ConstantFolding.evaluate(cuinstructions.subList(start,cuinstructions.size())));
+            }
             cuinstructions.add(new Instruction(Operation.stroe64));
             if(expressionType!=type){
-                throw new Error("wrong type at"+next().getStartPos());
+                throw new Error("wrong type at"+tokens.getStartPos(next()));
             }
             expect(TokenType.SEMICOLON);
 
-            varTable.addSymbol(symbol,nameToken.getStartPos());
+            varTable.addSymbol(symbol,tokens.startPos(nameToken));
         }
     }
 
-    private void analyseFunction() throws CompileError {
+    /**
+     * 第一遍：分析函数签名并登记到 _startTable，函数体留给第二遍
+     */
+    private FunctionUnit analyseFunction() throws CompileError {
         SymbolEntry symbol=new SymbolEntry(fnTable.getNextVariableOffset());
         this.cufn=symbol;
         ArrayList<Instruction> instructions=new ArrayList<>();
@@ -236,7 +382,8 @@ public final class Analyser {
         expect(TokenType.FN_KW);
         var nameToken = expect(TokenType.IDENT);
 
-        symbol.setName((String)nameToken.getValue());
+        symbol.setName(tokens.text(nameToken));
+        symbol.setId(tokens.symbol(nameToken));
 
         SymbolTable paratable=new SymbolTable();
         symbol.setParam(paratable);
@@ -250,20 +397,20 @@ public final class Analyser {
         }
         expect(TokenType.R_PAREN);
         expect(TokenType.ARROW);
-        if(nextIf(TokenType.INT)!=null){
+        if(nextIf(TokenType.INT)!=-1){
             type=IdentType.INT;
         }
-        else if(nextIf(TokenType.VOID)!=null){
+        else if(nextIf(TokenType.VOID)!=-1){
             type=IdentType.VOID;
         }
-        else if(nextIf(TokenType.DOUBLE)!=null){
+        else if(nextIf(TokenType.DOUBLE)!=-1){
             type=IdentType.DOUBLE;
         }
         else{
-            throw new ExpectedTokenError(List.of(TokenType.INT,TokenType.VOID), next());
+            throw new ExpectedTokenError(List.of(TokenType.INT,TokenType.VOID),tokens.token(next()));
         }
         symbol.setType(type);
-        if((nameToken.getValue()).equals("main")){
+        if(tokens.symbol(nameToken)==mainId){
             this.main=symbol;
             if(symbol.getType()==IdentType.VOID){
                 _start.getInstruction().add(new Instruction(Operation.stackalloc, 0L));
@@ -273,38 +420,150 @@ public final class Analyser {
             }
             _start.getInstruction().add(new Instruction(Operation.call,symbol.getStackOffset()));
         }
-        fnTable.addSymbol(symbol,nameToken.getStartPos());
+        fnTable.addSymbol(symbol,tokens.startPos(nameToken));
+        return new FunctionUnit(symbol,tokens.index());
+    }
+
+    /**
+     * 第一遍：跳过函数体，顺便把里面的字符串字面量按出现顺序登记到常量池
+     *
+     * @return 找没找到配对的右大括号
+     */
+    private boolean skipFunctionBody(FunctionUnit unit) throws CompileError {
+        if(!check(TokenType.L_BRACE)){
+            return false;
+        }
+        int depth=0;
+        do{
+            TokenType tt=peek();
+            if(tt==TokenType.EOF){
+                return false;
+            }
+            var token=next();
+            if(tt==TokenType.L_BRACE){
+                depth++;
+            }
+            else if(tt==TokenType.R_BRACE){
+                depth--;
+            }
+            else if(tt==TokenType.STRING_LITERAL){
+                constants.intern(tokens.text(token));
+            }
+        }while(depth>0);
+        unit.end=tokens.index();
+        return true;
+    }
+
+    /**
+     * 第二遍：分析所有函数体，函数体够多时放到线程池里并行
+     * <p>
+     * 每个函数的指令都生成到它自己的符号里，_startTable 里的顺序还是声明的顺序。
+     * 有函数体出错时报最前面那个函数的错误。设置了 FunctionCache 并且第一遍完整读完时，
+     * 没有变过的函数体直接用上一次的结果
+     *
+     * @param complete 第一遍是不是完整读完了
+     */
+    private void analyseFunctionBodies(List<FunctionUnit> units, boolean complete) throws CompileError {
+        boolean cached=functionCache!=null&&complete;
+        if(cached){
+            functionCache.lookup(tokens,units);
+        }
+        var pending=new ArrayList<FunctionUnit>(units.size());
+        int total=0;
+        for(int i=0;i<units.size();i++){
+            FunctionUnit unit=units.get(i);
+            if(!unit.reused){
+                pending.add(unit);
+                int end=i+1<units.size()?units.get(i+1).body:tokens.index();
+                total+=end-unit.body;
+            }
+        }
+        if(pending.size()<2||total<minParallel){
+            for(FunctionUnit unit:pending){
+                new Analyser(this,unit).analyseFunctionBody();
+            }
+        }
+        else{
+            analyseInParallel(pending);
+        }
+        if(cached){
+            functionCache.store(units);
+        }
+    }
+
+    private void analyseInParallel(List<FunctionUnit> units) throws CompileError {
+        var tasks=new ArrayList<ForkJoinTask<?>>(units.size());
+        for(FunctionUnit unit:units){
+            tasks.add(pool.submit(() -> {
+                try {
+                    new Analyser(this,unit).analyseFunctionBody();
+                } catch (Throwable e) {
+                    unit.failure=e;
+                }
+            }));
+        }
+        for(int i=0;i<tasks.size();i++){
+            tasks.get(i).join();
+            Throwable e=units.get(i).failure;
+            if(e!=null){
+                // 后面的函数体用不上了
+                for(int j=i+1;j<tasks.size();j++){
+                    tasks.get(j).cancel(false);
+                }
+                if(e instanceof CompileError){
+                    throw (CompileError) e;
+                }
+                if(e instanceof RuntimeException){
+                    throw (RuntimeException) e;
+                }
+                throw (Error) e;
+            }
+        }
+    }
+
+    /**
+     * 第二遍：分析一个函数体并生成指令，然后做 passes 里的优化
+     */
+    private void analyseFunctionBody() throws CompileError {
         analyseBlockStatement(-1);
-        if(symbol.getType()==IdentType.VOID||symbol.getInstruction().get(symbol.getInstruction().size()-1).getOpt()!=Operation.ret){
-            symbol.getInstruction().add(new Instruction(Operation.ret));
+        if(cufn.getType()==IdentType.VOID||cuinstructions.get(cuinstructions.size()-1).getOpt()!=Operation.ret){
+            cuinstructions.add(new Instruction(Operation.ret));
+        }
+        optimize(cuinstructions);
+    }
+
+    private void optimize(ArrayList<Instruction> instructions) {
+        for(Pass pass:passes){
+            pass.run(instructions);
         }
     }
 
     private void analyseParamList() throws CompileError{
         SymbolEntry symbol=new SymbolEntry(cufn.getParam().getNextVariableOffset());
         SymbolKind isConstant=SymbolKind.LET;
-        if(nextIf(TokenType.CONST_KW)!=null){
+        if(nextIf(TokenType.CONST_KW)!=-1){
             isConstant=SymbolKind.CONST;
         }
         var nameToken = expect(TokenType.IDENT);
         expect(TokenType.COLON);
         if(check(TokenType.DOUBLE)||check(TokenType.INT)){
-            if(nextIf(TokenType.DOUBLE)!=null) {
+            if(nextIf(TokenType.DOUBLE)!=-1) {
                 symbol.setType(IdentType.DOUBLE);
             }
-            else if(nextIf(TokenType.INT)!=null){
+            else if(nextIf(TokenType.INT)!=-1){
                 symbol.setType(IdentType.INT);
             }
         }
         else{
-            throw new ExpectedTokenError(List.of(TokenType.DOUBLE,TokenType.INT),next());
+            throw new ExpectedTokenError(List.of(TokenType.DOUBLE,TokenType.INT),tokens.token(next()));
         }
-        symbol.setName((String) nameToken.getValue());
+        symbol.setName(tokens.text(nameToken));
+        symbol.setId(tokens.symbol(nameToken));
         symbol.setInitialized(true);
         symbol.setKind(isConstant);
 
-        this.paraTable.addSymbol(symbol,nameToken.getStartPos());
-        if(nextIf(TokenType.COMMA)!=null){
+        this.paraTable.addSymbol(symbol,tokens.startPos(nameToken));
+        if(nextIf(TokenType.COMMA)!=-1){
             analyseParamList();
         }
     }
@@ -312,9 +571,7 @@ public final class Analyser {
         ArrayList<Instruction> brList=new ArrayList<>();
 
         expect(TokenType.L_BRACE);
-        while(check(TokenType.IF_KW)||check(TokenType.WHILE_KW)||check(TokenType.RETURN_KW)
-                ||check(TokenType.SEMICOLON)||check(TokenType.MINUS)||check(TokenType.IDENT)
-                ||check(TokenType.LET_KW)||check(TokenType.CONST_KW)||check(TokenType.CONTINUE_KW)||check(TokenType.BREAK_KW)) {
+        while(isStatementStart(peek())) {
             Instruction[]br=analyseStatement(offbooleanexpression);
             if(br!=null){
                 brList.addAll(Arrays.asList(br));
@@ -352,16 +609,19 @@ public final class Analyser {
                 return null;
             }
             else if(check(TokenType.BREAK_KW)){
-                return new Instruction[]{analyseBreakStatement()};
+                return new Instruction[]{analyseBreakStatement(offbooleanexpression)};
             }
             else{
                 throw new ExpectedTokenError(List.of(TokenType.IF_KW,TokenType.WHILE_KW,TokenType.RETURN_KW,
-                        TokenType.SEMICOLON,TokenType.IDENT, TokenType.LET_KW,TokenType.CONST_KW,TokenType.CONTINUE_KW,TokenType.BREAK_KW),next());
+                        TokenType.SEMICOLON,TokenType.IDENT, TokenType.LET_KW,TokenType.CONST_KW,TokenType.CONTINUE_KW,TokenType.BREAK_KW),tokens.token(next()));
             }
     }
-    private Instruction analyseBreakStatement() throws CompileError {
+    private Instruction analyseBreakStatement(int offbooleanexpression) throws CompileError {
         expect(TokenType.BREAK_KW);
         expect(TokenType.SEMICOLON);
+        if(offbooleanexpression==-1){
+            throw new Error("wrong break statement");
+        }
         Instruction br=new Instruction(Operation.br);
         cuinstructions.add(br);
         br.setX(cufn.getInstruction().size());
@@ -385,7 +645,7 @@ public final class Analyser {
             IdentType type=analyseExpression();
             cuinstructions.add(new Instruction(Operation.stroe64));
             if(type!=cufn.getType()){
-                throw new Error("wrong return at"+next().getStartPos());
+                throw new Error("wrong return at"+tokens.getStartPos(next()));
             }
         }
 
@@ -469,7 +729,7 @@ public final class Analyser {
             cuinstructions.add(new Instruction(Operation.setlt));
             cuinstructions.add(new Instruction(Operation.brtrue, 1L));
             if(subtype!=type){
-                throw new Error("wrong type at"+next().getStartPos());
+                throw new Error("wrong type at"+tokens.getStartPos(next()));
             }
             return IdentType.VOID;
         }
@@ -485,7 +745,7 @@ public final class Analyser {
             cuinstructions.add(new Instruction(Operation.setgt));
             cuinstructions.add(new Instruction(Operation.brfalse, 1L));
             if(subtype!=type){
-                throw new Error("wrong type at"+next().getStartPos());
+                throw new Error("wrong type at"+tokens.getStartPos(next()));
             }
             return IdentType.VOID;
         }
@@ -501,7 +761,7 @@ public final class Analyser {
             cuinstructions.add(new Instruction(Operation.setlt));
             cuinstructions.add(new Instruction(Operation.brfalse, 1L));
             if(subtype!=type){
-                throw new Error("wrong type at"+next().getStartPos());
+                throw new Error("wrong type at"+tokens.getStartPos(next()));
             }
             return IdentType.VOID;
         }
@@ -517,7 +777,7 @@ public final class Analyser {
             cuinstructions.add(new Instruction(Operation.setgt));
             cuinstructions.add(new Instruction(Operation.brtrue, 1L));
             if(subtype!=type){
-                throw new Error("wrong type at"+next().getStartPos());
+                throw new Error("wrong type at"+tokens.getStartPos(next()));
             }
             return IdentType.VOID;
         }
@@ -532,7 +792,7 @@ public final class Analyser {
             }
             cuinstructions.add(new Instruction(Operation.brtrue, 1L));
             if(subtype!=type){
-                throw new Error("wrong type at"+next().getStartPos());
+                throw new Error("wrong type at"+tokens.getStartPos(next()));
             }
             return IdentType.VOID;
         }
@@ -547,7 +807,7 @@ public final class Analyser {
             }
             cuinstructions.add(new Instruction(Operation.brfalse, 1L));
             if(subtype!=type){
-                throw new Error("wrong type at"+next().getStartPos());
+                throw new Error("wrong type at"+tokens.getStartPos(next()));
             }
             return IdentType.VOID;
         }
@@ -568,12 +828,12 @@ public final class Analyser {
             entry.setInitialized(true);
             IdentType type=analyseExpression();
             if(type!=entry.getType()){
-                throw new Error("wrong type at"+next().getStartPos());
+                throw new Error("wrong type at"+tokens.getStartPos(next()));
             }
             cuinstructions.add(new Instruction(Operation.stroe64));
         }
         else{
-            throw new ExpectedTokenError(List.of(TokenType.IDENT,TokenType.ASSIGN) ,next());
+            throw new ExpectedTokenError(List.of(TokenType.IDENT,TokenType.ASSIGN) ,tokens.token(next()));
         }
         expect(TokenType.SEMICOLON);
     }
@@ -581,10 +841,10 @@ public final class Analyser {
     private IdentType analyseExpression() throws CompileError{
         IdentType type=analyseTerm();
         while(check(TokenType.MINUS)||check(TokenType.PLUS)){
-            if(nextIf(TokenType.MINUS)!=null){
+            if(nextIf(TokenType.MINUS)!=-1){
                 IdentType subtype=analyseTerm();
                 if(subtype!=type){
-                    throw new Error("wrong type at"+next().getStartPos());
+                    throw new Error("wrong type at"+tokens.getStartPos(next()));
                 }
                 if(type==IdentType.DOUBLE){
                     cuinstructions.add(new Instruction(Operation.subf));
@@ -593,10 +853,10 @@ public final class Analyser {
                     cuinstructions.add(new Instruction(Operation.subi));
                 }
             }
-            else if(nextIf(TokenType.PLUS)!=null){
+            else if(nextIf(TokenType.PLUS)!=-1){
                 IdentType subtype=analyseTerm();
                 if(subtype!=type){
-                    throw new Error("wrong type at"+next().getStartPos());
+                    throw new Error("wrong type at"+tokens.getStartPos(next()));
                 }
                 if(type==IdentType.DOUBLE){
                     cuinstructions.add(new Instruction(Operation.addf));
@@ -612,10 +872,10 @@ public final class Analyser {
     private IdentType analyseTerm() throws CompileError {
         IdentType type=analyseFactor();
         while(check(TokenType.MUL)||check(TokenType.DIV)){
-            if(nextIf(TokenType.MUL)!=null){
+            if(nextIf(TokenType.MUL)!=-1){
                 IdentType subtype=analyseFactor();
                 if(subtype!=type){
-                    throw new Error("wrong type at"+next().getStartPos());
+                    throw new Error("wrong type at"+tokens.getStartPos(next()));
                 }
                 if(type==IdentType.DOUBLE){
                     cuinstructions.add(new Instruction(Operation.mulf));
@@ -624,10 +884,10 @@ public final class Analyser {
                     cuinstructions.add(new Instruction(Operation.muli));
                 }
             }
-            else if(nextIf(TokenType.DIV)!=null){
+            else if(nextIf(TokenType.DIV)!=-1){
                 IdentType subtype=analyseFactor();
                 if(subtype!=type){
-                    throw new Error("wrong type at"+next().getStartPos());
+                    throw new Error("wrong type at"+tokens.getStartPos(next()));
                 }
                 if(type==IdentType.DOUBLE){
                     cuinstructions.add(new Instruction(Operation.divf));
@@ -645,7 +905,7 @@ public final class Analyser {
         int negate = 0;
         IdentType type;
         while (check(TokenType.MINUS) ||check(TokenType.PLUS)) {
-            if(nextIf(TokenType.MINUS)!=null){
+            if(nextIf(TokenType.MINUS)!=-1){
                 negate = negate+1;
                 // 计算结果需要被 0 减
             }
@@ -662,25 +922,30 @@ public final class Analyser {
             }
             else{
                 SymbolEntry entry=getvar(nameToken);
-                cuinstructions.add(new Instruction(Operation.load64,entry.stackOffset));
+                if(entry.getConstant()!=null){
+                    // 值在编译时就知道的 const，把 getvar 生成的取地址换成直接压栈
+                    cuinstructions.set(cuinstructions.size()-1,new Instruction(Operation.push,entry.getConstant()));
+                }
+                else{
+                    cuinstructions.add(new Instruction(Operation.load64,entry.stackOffset));
+                }
                 type=entry.getType();
             }
         } else if (check(TokenType.UINT_LITERAL)) {
             var nameToken=next();
-            cuinstructions.add(new Instruction(Operation.push,(Long) nameToken.getValue()));
+            cuinstructions.add(new Instruction(Operation.push,tokens.number(nameToken)));
             type=IdentType.INT;
 
         } else if (check(TokenType.DOUBLE_LITERAL)) {
             var nameToken=next();
-            cuinstructions.add(new Instruction(Operation.push,(Long) nameToken.getValue()));
+            cuinstructions.add(new Instruction(Operation.push,tokens.number(nameToken)));
             type=IdentType.DOUBLE;
             // 调用相应的处理函数
         }else if(check(TokenType.STRING_LITERAL)){
             var nameToken=next();
-            SymbolEntry symbol=new SymbolEntry((String)nameToken.getValue(),true,globalTable.getNextVariableOffset(),SymbolKind.CONST
-                    ,IdentType.STRING,nameToken.getValue());
-            globalTable.addSymbol(symbol,nameToken.getStartPos());
-            cuinstructions.add(new Instruction(Operation.push,globalTable.getOffset((String)nameToken.getValue(),nameToken.getStartPos())));
+            // 函数体里的在第一遍已经登记过了，第二遍只查不改
+            int offset=unit!=null?constants.offset(tokens.text(nameToken)):constants.intern(tokens.text(nameToken));
+            cuinstructions.add(new Instruction(Operation.push,(long) offset));
             type=null;
         } else if (check(TokenType.L_PAREN)) {
             expect(TokenType.L_PAREN);
@@ -688,7 +953,7 @@ public final class Analyser {
             expect(TokenType.R_PAREN);
         } else {
             // 都不是，摸了
-            throw new ExpectedTokenError(List.of(TokenType.IDENT, TokenType.UINT_LITERAL, TokenType.L_PAREN), next());
+            throw new ExpectedTokenError(List.of(TokenType.IDENT, TokenType.UINT_LITERAL, TokenType.L_PAREN),tokens.token(next()));
         }
 
         while(check(TokenType.AS_KW)){
@@ -720,12 +985,14 @@ public final class Analyser {
         return type;
         //throw new Error("Not implemented");
     }
-    private IdentType analysefn(Token nameToken) throws CompileError {
+    private IdentType analysefn(int nameToken) throws CompileError {
         IdentType type=null;
-        if(nameToken.getValue().equals("putint")||nameToken.getValue().equals("putdouble")
-                ||nameToken.getValue().equals("putchar")||nameToken.getValue().equals("putstr")){
+        int id=tokens.symbol(nameToken);
+        int lib=libIndex(id);
+        if(lib==PUTINT||lib==PUTDOUBLE
+                ||lib==PUTCHAR||lib==PUTSTR){
 
-            SymbolEntry entry=globalTable.getsymbol(nameToken.getValue(),nameToken.getStartPos());
+            SymbolEntry entry=globalTable.getsymbol(id,tokens.startPos(nameToken));
             cuinstructions.add(new Instruction(Operation.stackalloc,0L));
             expect(TokenType.L_PAREN);
             if (check(TokenType.MINUS) || check(TokenType.IDENT) || check(TokenType.L_PAREN)
@@ -737,21 +1004,21 @@ public final class Analyser {
             cuinstructions.add(new Instruction(Operation.callname,entry.getStackOffset()));
             type=IdentType.VOID;
         }
-        else if(nameToken.getValue().equals("getint")||nameToken.getValue().equals("getdouble")||nameToken.getValue().equals("getchar")){
-            SymbolEntry entry=globalTable.getsymbol(nameToken.getValue(),nameToken.getStartPos());
+        else if(lib==GETINT||lib==GETDOUBLE||lib==GETCHAR){
+            SymbolEntry entry=globalTable.getsymbol(id,tokens.startPos(nameToken));
             expect(TokenType.L_PAREN);
             expect(TokenType.R_PAREN);
             cuinstructions.add(new Instruction(Operation.stackalloc, 1L));
             cuinstructions.add(new Instruction(Operation.callname,entry.getStackOffset()));
-            if(nameToken.getValue().equals("getint")||nameToken.getValue().equals("getchar")){
+            if(lib==GETINT||lib==GETCHAR){
                 type=IdentType.INT;
             }
-            else if(nameToken.getValue().equals("getdouble")){
+            else if(lib==GETDOUBLE){
                 type=IdentType.DOUBLE;
             }
         }
-        else if(nameToken.getValue().equals("putln")){
-            SymbolEntry entry=globalTable.getsymbol(nameToken.getValue(),nameToken.getStartPos());
+        else if(lib==PUTLN){
+            SymbolEntry entry=globalTable.getsymbol(id,tokens.startPos(nameToken));
             expect(TokenType.L_PAREN);
             expect(TokenType.R_PAREN);
             cuinstructions.add(new Instruction(Operation.stackalloc, 0L));
@@ -759,7 +1026,11 @@ public final class Analyser {
             type=IdentType.VOID;
         }
         else{
-            SymbolEntry entry=fnTable.getsymbol(nameToken.getValue(),nameToken.getStartPos());
+            SymbolEntry entry=fnTable.getsymbol(id,tokens.startPos(nameToken));
+            if(entry!=null&&cufn!=null&&entry.getStackOffset()>cufn.getStackOffset()){
+                // 签名已经全部登记了，但是只能调用在前面声明的函数（和自己）
+                entry=null;
+            }
             stackAlloc(entry);
             expect(TokenType.L_PAREN);
             if (check(TokenType.MINUS) || check(TokenType.IDENT) || check(TokenType.L_PAREN)
@@ -776,14 +1047,15 @@ public final class Analyser {
         }
         return type;
     }
-    private SymbolEntry getvar(Token nameToken) throws AnalyzeError {
-        SymbolEntry entry=varTable.getsymbol(nameToken.getValue(),nameToken.getStartPos());
+    private SymbolEntry getvar(int nameToken) throws AnalyzeError {
+        int id=tokens.symbol(nameToken);
+        SymbolEntry entry=varTable.getsymbol(id,tokens.startPos(nameToken));
         if(entry==null){
-            entry=cufn.getParam().getsymbol(nameToken.getValue(),nameToken.getStartPos());
+            entry=cufn.getParam().getsymbol(id,tokens.startPos(nameToken));
             if(entry==null){
-                entry=globalTable.getsymbol(nameToken.getValue(),nameToken.getStartPos());
+                entry=globalTable.getsymbol(id,tokens.startPos(nameToken));
                 if(entry==null){
-                    throw new AnalyzeError(ErrorCode.NotDeclared,nameToken.getStartPos());
+                    throw new AnalyzeError(ErrorCode.NotDeclared,tokens.getStartPos(nameToken));
                 }
                 else{
                     cuinstructions.add(new Instruction(Operation.globa,entry.stackOffset));
@@ -798,12 +1070,28 @@ public final class Analyser {
                 }
             }
         }
+        else if(varTable.isStart()){
+            // 全局变量的初始化表达式里 varTable 就是全局的表
+            cuinstructions.add(new Instruction(Operation.globa,entry.stackOffset));
+        }
         else{
             cuinstructions.add(new Instruction(Operation.loca,entry.stackOffset));
         }
         return entry;
     }
 
+    /**
+     * 名字 id 对应的标准库函数在 libs 里的下标，不是标准库函数就返回 -1
+     */
+    private int libIndex(int id){
+        for(int i=0;i<libIds.length;i++){
+            if(libIds[i]==id){
+                return i;
+            }
+        }
+        return -1;
+    }
+
     private void stackAlloc(SymbolEntry symbol){
         if(symbol.getType()==IdentType.VOID){
             cuinstructions.add(new Instruction(Operation.stackalloc, 0L));
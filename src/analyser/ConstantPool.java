@@ -0,0 +1,58 @@
+package analyser;
+
+import error.AnalyzeError;
+import util.LineIndex;
+
+import java.util.HashMap;
+
+/**
+ * 字符串常量池：内容相同的字符串字面量共用一个全局变量
+ * <p>
+ * 字面量不是名字，不放进 globalTable 的名字索引（不会和变量重名，也不能被当成变量读到），
+ * 只在这里按内容查它的全局偏移。每个不同的字面量第一次出现时在 globalTable 末尾占一个位置，
+ * Generator 按 globalTable 的顺序输出，所以每个字符串在 o0 里只出现一次。
+ * 标准库函数名也登记在这里，和它们内容相同的字面量直接用函数名的那个全局变量。
+ */
+class ConstantPool {
+    private final SymbolTable globals;
+    /** 字符串内容到全局偏移 */
+    private final HashMap<String, Integer> offsets = new HashMap<>();
+
+    ConstantPool(SymbolTable globals) {
+        this.globals = globals;
+    }
+
+    /**
+     * 登记一个已经在全局符号表里的字符串常量
+     */
+    void add(String value, int offset) {
+        offsets.putIfAbsent(value, offset);
+    }
+
+    /**
+     * 取字面量的全局偏移，第一次出现时在全局符号表里分配
+     */
+    int intern(String value) throws AnalyzeError {
+        Integer offset = offsets.get(value);
+        if (offset == null) {
+            offset = globals.getNextVariableOffset();
+            // id 小于 0 的符号没有名字，只按顺序输出
+            globals.addSymbol(new SymbolEntry(value, -1, true, offset, SymbolKind.CONST, IdentType.STRING, value), LineIndex.NONE);
+            offsets.put(value, offset);
+        }
+        return offset;
+    }
+
+    /**
+     * 取一个已经登记过的字面量的全局偏移，只读不改，第二遍的几个线程可以同时调
+     * <p>
+     * 第一遍没有登记的字面量说明两遍看到的 token 不一样，是编译器自己的错
+     */
+    int offset(String value) {
+        Integer offset = offsets.get(value);
+        if (offset == null) {
+            throw new IllegalStateException("string literal \"" + value + "\" was not interned before the function bodies");
+        }
+        return offset;
+    }
+}
@@ -0,0 +1,136 @@
+package analyser;
+
+import instruction.Instruction;
+import tokenizer.TokenBuffer;
+import tokenizer.TokenType;
+import util.Hashing;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * 增量编译用的函数体缓存：记住上一次编译每个函数体生成的指令和局部变量表
+ * <p>
+ * 一个函数体的结果只取决于它是第几个函数、它自己的 token、在它前面出现的字符串字面量
+ * （决定常量池给它们的全局偏移），以及所有函数体以外的部分（全局变量和函数签名）。前三样合起来算一个键；
+ * 函数体以外的部分另算一个哈希，变了就把缓存清空，全部重新分析。
+ * 只比较 token，改动空白、注释或者只是挪了位置的函数体不用重新分析。
+ */
+public class FunctionCache {
+    private static class Result {
+        final ArrayList<Instruction> instructions;
+        final SymbolTable loc;
+
+        Result(ArrayList<Instruction> instructions, SymbolTable loc) {
+            this.instructions = instructions;
+            this.loc = loc;
+        }
+    }
+
+    /** 函数体以外部分的哈希 */
+    private byte[] outline = null;
+    private HashMap<String, Result> results = new HashMap<>();
+    /** 这一次编译每个函数体的键，和 lookup 时的 units 一一对应 */
+    private String[] keys = new String[0];
+    private int reused = 0;
+
+    /**
+     * 第一遍之后调用：算出每个函数体的键，没有变过的函数体直接填上上一次的结果
+     */
+    void lookup(TokenBuffer tokens, List<FunctionUnit> units) {
+        MessageDigest outside = Hashing.sha256();
+        int next = 0;
+        for (FunctionUnit unit : units) {
+            hashTokens(outside, tokens, next, unit.body);
+            next = unit.end;
+        }
+        hashTokens(outside, tokens, next, tokens.size());
+        byte[] hash = outside.digest();
+        if (!MessageDigest.isEqual(hash, outline)) {
+            // 全局变量或者函数签名变了，旧的结果都不能用
+            outline = hash;
+            results.clear();
+        }
+
+        keys = new String[units.size()];
+        reused = 0;
+        MessageDigest strings = Hashing.sha256();
+        for (int i = 0; i < units.size(); i++) {
+            FunctionUnit unit = units.get(i);
+            MessageDigest body = Hashing.sha256();
+            // 同样的函数体放在签名不同的函数里，生成的指令也可能不一样
+            body.update(ByteBuffer.allocate(8).putLong(unit.fn.getStackOffset()).array());
+            body.update(digestOf(strings));
+            hashTokens(body, tokens, unit.body, unit.end);
+            keys[i] = Hashing.hex(body.digest());
+            for (int t = unit.body; t < unit.end; t++) {
+                if (tokens.type(t) == TokenType.STRING_LITERAL) {
+                    strings.update(tokens.text(t).getBytes(StandardCharsets.UTF_8));
+                    strings.update((byte) 0);
+                }
+            }
+            Result result = results.get(keys[i]);
+            if (result != null) {
+                unit.fn.setInstruction(result.instructions);
+                unit.fn.setLoc(result.loc);
+                unit.reused = true;
+                reused++;
+            }
+        }
+    }
+
+    /**
+     * 第二遍全部成功之后调用：缓存里只留下这一次的结果
+     */
+    void store(List<FunctionUnit> units) {
+        var current = new HashMap<String, Result>(units.size() * 2);
+        for (int i = 0; i < units.size(); i++) {
+            SymbolEntry fn = units.get(i).fn;
+            current.put(keys[i], new Result(fn.getInstruction(), fn.getLoc()));
+        }
+        results = current;
+    }
+
+    /**
+     * 上一次编译时直接用了缓存的函数体个数
+     */
+    public int getReused() {
+        return reused;
+    }
+
+    /**
+     * 上一次编译的函数体个数
+     */
+    public int getCount() {
+        return keys.length;
+    }
+
+    private static void hashTokens(MessageDigest digest, TokenBuffer tokens, int from, int to) {
+        var bytes = ByteBuffer.allocate(9);
+        for (int i = from; i < to; i++) {
+            TokenType type = tokens.type(i);
+            bytes.clear();
+            bytes.put((byte) type.ordinal());
+            if (type == TokenType.UINT_LITERAL || type == TokenType.DOUBLE_LITERAL) {
+                bytes.putLong(tokens.number(i));
+            }
+            digest.update(bytes.array(), 0, bytes.position());
+            if (type == TokenType.IDENT || type == TokenType.STRING_LITERAL) {
+                digest.update(tokens.text(i).getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+        }
+    }
+
+    private static byte[] digestOf(MessageDigest running) {
+        try {
+            return ((MessageDigest) running.clone()).digest();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package analyser;
+
+/**
+ * 第一遍分析出来的一个函数：签名已经登记到 _startTable，函数体留给第二遍
+ * <p>
+ * 函数体就是 TokenBuffer 里从 body 开始的那一对大括号，第二遍再从那里重新读。
+ * 函数体里的字符串字面量在第一遍就按出现顺序登记到了常量池。
+ */
+class FunctionUnit {
+    /** 函数的符号，第二遍往它的指令列表里生成代码 */
+    final SymbolEntry fn;
+    /** 函数体第一个 token（左大括号）的下标 */
+    final int body;
+    /** 函数体后面第一个 token 的下标，第一遍没找到配对的右大括号时是 -1 */
+    int end = -1;
+    /** 第二遍分析这个函数体时的错误 */
+    Throwable failure = null;
+    /** 指令和局部变量表是从 FunctionCache 里拿的，第二遍不用再分析 */
+    boolean reused = false;
+
+    FunctionUnit(SymbolEntry fn, int body) {
+        this.fn = fn;
+        this.body = body;
+    }
+}
@@ -14,10 +14,15 @@ public class SymbolEntry {
     int paramnum;
     ArrayList<Instruction> instruction;
     String name;
+    /** 名字在 NameTable 里的 id，符号表按它查找，-1 表示没有名字 */
+    int id;
     SymbolTable loc;
     boolean isparam=false;
+    /** const 的初始值是常量表达式时它在编译时就知道的值（double 是位模式），否则是 null */
+    Long constant=null;
     public SymbolEntry(int stackOffset){
         this.name =null;
+        this.id = -1;
         this.isInitialized = false;
         this.stackOffset = stackOffset;
         this.kind = null;
@@ -28,8 +33,9 @@ public class SymbolEntry {
         this.instruction = null;
         this.loc =null;
     }
-    public SymbolEntry(String name,boolean isDeclared, int stackOffset, SymbolKind kind, IdentType type, Object value, SymbolTable param, int paramnum,ArrayList<Instruction>  instruction,SymbolTable loc) {
+    public SymbolEntry(String name,int id,boolean isDeclared, int stackOffset, SymbolKind kind, IdentType type, Object value, SymbolTable param, int paramnum,ArrayList<Instruction>  instruction,SymbolTable loc) {
         this.name =name;
+        this.id =id;
         this.isInitialized = isDeclared;
         this.stackOffset = stackOffset;
         this.kind = kind;
@@ -40,8 +46,9 @@ public class SymbolEntry {
         this.instruction = instruction;
         this.loc = loc;
     }
-    public SymbolEntry(String name,boolean isDeclared, int stackOffset, SymbolKind kind, IdentType type, Object value) {
+    public SymbolEntry(String name,int id,boolean isDeclared, int stackOffset, SymbolKind kind, IdentType type, Object value) {
         this.name =name;
+        this.id =id;
         this.isInitialized = isDeclared;
         this.stackOffset = stackOffset;
         this.kind = kind;
@@ -145,6 +152,22 @@ public class SymbolEntry {
         this.name = name;
     }
 
+    public int getId() {
+        return id;
+    }
+
+    public void setId(int id) {
+        this.id = id;
+    }
+
+    public Long getConstant() {
+        return constant;
+    }
+
+    public void setConstant(Long constant) {
+        this.constant = constant;
+    }
+
     public boolean isIsparam() {
         return isparam;
     }
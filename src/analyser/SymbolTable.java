@@ -2,13 +2,18 @@ package analyser;
 
 import error.AnalyzeError;
 import error.ErrorCode;
-import util.Pos;
 
-import java.util.LinkedHashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 public class SymbolTable {
-    /** 符号表 */
-    private LinkedHashMap<String, SymbolEntry> symbolTable = new LinkedHashMap<>();
+    private static final int EMPTY = -1;
+    /** 符号表，按名字 id 开放寻址，keys 里是名字 id，EMPTY 表示空槽 */
+    private int[] keys = emptyKeys(8);
+    private SymbolEntry[] entries = new SymbolEntry[8];
+    /** 按加入顺序排列的符号，生成代码时要按这个顺序输出 */
+    private ArrayList<SymbolEntry> symbols = new ArrayList<>();
     private SymbolTable lastTable=null;
     /** 下一个变量的栈偏移 */
     private int nextOffset = 0;
@@ -36,27 +41,36 @@ public class SymbolTable {
 //        }
 //    }
 
-    public void addSymbol(SymbolEntry symbol, Pos curPos) throws AnalyzeError {
-        if (this.symbolTable.get(symbol.getName()) != null) {
+    /**
+     * 加入一个符号，id 小于 0 的符号（比如 _start）没有名字，不能被查到
+     */
+    public void addSymbol(SymbolEntry symbol, int curPos) throws AnalyzeError {
+        int id = symbol.getId();
+        if (id < 0) {
+            this.symbols.add(symbol);
+            return;
+        }
+        if (this.get(id) != null) {
             throw new AnalyzeError(ErrorCode.DuplicateDeclaration, curPos);
         } else {
-            if(this.lastTable!=null&&this.lastTable.symbolTable.get(symbol.getName()) != null) {
+            if(this.lastTable!=null&&this.lastTable.get(id) != null) {
                 throw new AnalyzeError(ErrorCode.DuplicateDeclaration, curPos);
             }
             else{
-                this.symbolTable.put(symbol.getName(), symbol);
+                this.put(id, symbol);
+                this.symbols.add(symbol);
             }
         }
     }
     /**
      * 设置符号为已赋值
      *
-     * @param name   符号名称
-     * @param curPos 当前位置（报错用）
+     * @param id     符号名称的 id，见 NameTable
+     * @param curPos 当前位置在源码里的偏移（报错用）
      * @throws AnalyzeError 如果未定义则抛异常
      */
-    public void declareSymbol(String name, Pos curPos) throws AnalyzeError {
-        var entry = this.symbolTable.get(name);
+    public void declareSymbol(int id, int curPos) throws AnalyzeError {
+        var entry = this.get(id);
         if (entry == null) {
             throw new AnalyzeError(ErrorCode.NotDeclared, curPos);
         } else {
@@ -82,17 +96,17 @@ public class SymbolTable {
         }
     }
 
-    public SymbolEntry getsymbol(Object name,Pos curPos) throws AnalyzeError {
-        var entry = this.symbolTable.get(name);
+    public SymbolEntry getsymbol(int id,int curPos) throws AnalyzeError {
+        var entry = this.get(id);
         return entry;
     }
 
     public int getCount(){
-        return symbolTable.size();
+        return symbols.size();
     }
 
-    public long getOffset(String name, Pos curPos) throws AnalyzeError {
-        var entry = this.symbolTable.get(name);
+    public long getOffset(int id, int curPos) throws AnalyzeError {
+        var entry = this.get(id);
         if (entry == null) {
             throw new AnalyzeError(ErrorCode.NotDeclared, curPos);
         } else {
@@ -100,7 +114,51 @@ public class SymbolTable {
         }
     }
 
-    public LinkedHashMap<String, SymbolEntry> getSymbolTable() {
-        return symbolTable;
+    public List<SymbolEntry> getSymbols() {
+        return symbols;
+    }
+
+    // id 是连续分配的，直接用低位当槽号就够散了
+
+    private SymbolEntry get(int id) {
+        int mask = keys.length - 1;
+        for (int slot = id & mask; keys[slot] != EMPTY; slot = (slot + 1) & mask) {
+            if (keys[slot] == id) {
+                return entries[slot];
+            }
+        }
+        return null;
+    }
+
+    private void put(int id, SymbolEntry entry) {
+        // 装载因子保持在 1/2 以下
+        if ((symbols.size() + 1) * 2 > keys.length) {
+            int[] oldKeys = keys;
+            SymbolEntry[] oldEntries = entries;
+            keys = emptyKeys(oldKeys.length * 2);
+            entries = new SymbolEntry[oldKeys.length * 2];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != EMPTY) {
+                    insert(oldKeys[i], oldEntries[i]);
+                }
+            }
+        }
+        insert(id, entry);
+    }
+
+    private void insert(int id, SymbolEntry entry) {
+        int mask = keys.length - 1;
+        int slot = id & mask;
+        while (keys[slot] != EMPTY) {
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = id;
+        entries[slot] = entry;
+    }
+
+    private static int[] emptyKeys(int capacity) {
+        int[] keys = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+        return keys;
     }
 }
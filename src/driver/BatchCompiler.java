@@ -0,0 +1,169 @@
+package driver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 在一个 JVM 里批量编译：java App --generate-batch 清单文件 [--jobs N]
+ * <p>
+ * 清单每行一个任务，输入文件和输出文件之间用制表符隔开（路径里没有空白时也可以用空格），
+ * 空行和 # 开头的行跳过，相对路径相对于清单文件所在的目录。
+ * 每个任务各自走一遍 Tokenizer、Analyser、Generator，放在 N 个线程的线程池里同时跑（默认是 CPU 个数），
+ * 一个任务出错不影响其它任务。指令清单不输出，全部结束后按清单的顺序报告出错的任务，最后一行是汇总。
+ * 后面的其它选项（比如 --cache 目录）传给每个任务。
+ */
+public final class BatchCompiler {
+    /** 汇总里列出最慢的几个任务 */
+    private static final int SLOWEST = 5;
+    private static final String USAGE = "usage: --generate-batch <manifest> [--jobs N] [<option>...]";
+
+    private BatchCompiler() {
+    }
+
+    private static class Job {
+        final String input;
+        final String output;
+        long nanos;
+        Throwable error;
+
+        Job(String input, String output) {
+            this.input = input;
+            this.output = output;
+        }
+    }
+
+    /**
+     * @param args --generate-batch 后面的参数
+     * @return 退出码，有任务出错时是 1，参数不对时是 2
+     */
+    public static int main(List<String> args, PrintStream out, PrintStream err) throws IOException {
+        if (args.isEmpty() || args.get(0).startsWith("--")) {
+            err.println(USAGE);
+            return 2;
+        }
+        Path manifest = Path.of(args.get(0));
+        int i = args.indexOf("--jobs");
+        int threads = Runtime.getRuntime().availableProcessors();
+        if (i >= 0) {
+            threads = i + 1 < args.size() ? parseJobs(args.get(i + 1)) : 0;
+            if (threads <= 0) {
+                err.println("--jobs needs a positive number of threads");
+                err.println(USAGE);
+                return 2;
+            }
+        }
+        List<Job> jobs = readManifest(manifest);
+        Path dir = manifest.toAbsolutePath().getParent();
+        // 其它选项（比如 --cache）原样传给每个任务，缓存目录相对于当前目录
+        var options = new ArrayList<String>();
+        for (int k = 1; k < args.size(); k++) {
+            if (k == i || k == i + 1) {
+                continue;
+            }
+            options.add(args.get(k));
+            if (args.get(k).equals("--cache")) {
+                options.add(Path.of(args.get(++k)).toAbsolutePath().toString());
+            }
+        }
+
+        long start = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            var futures = new ArrayList<Future<?>>(jobs.size());
+            for (Job job : jobs) {
+                futures.add(pool.submit(() -> run(job, dir, options)));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException | InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+        long wall = System.nanoTime() - start;
+
+        int failed = 0;
+        long total = 0;
+        for (Job job : jobs) {
+            total += job.nanos;
+            if (job.error != null) {
+                failed++;
+                err.println("FAILED " + job.input + ": " + job.error);
+            }
+        }
+        var slowest = new ArrayList<>(jobs);
+        slowest.sort(Comparator.comparingLong((Job job) -> job.nanos).reversed());
+        var summary = new StringBuilder();
+        summary.append(jobs.size()).append(" jobs, ").append(failed).append(" failed, ")
+                .append(threads).append(" threads, wall ").append(millis(wall))
+                .append(", compile total ").append(millis(total));
+        if (!jobs.isEmpty()) {
+            summary.append(", slowest:");
+            for (Job job : slowest.subList(0, Math.min(SLOWEST, slowest.size()))) {
+                summary.append(' ').append(job.input).append(' ').append(millis(job.nanos));
+            }
+        }
+        out.println(summary);
+        return failed == 0 ? 0 : 1;
+    }
+
+    private static List<Job> readManifest(Path manifest) throws IOException {
+        var jobs = new ArrayList<Job>();
+        int row = 0;
+        for (String line : Files.readAllLines(manifest, StandardCharsets.UTF_8)) {
+            row++;
+            line = line.strip();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.contains("\t") ? line.split("\t+") : line.split("\\s+");
+            if (fields.length != 2) {
+                throw new IOException(manifest + ":" + row + ": expected <input> <output>");
+            }
+            jobs.add(new Job(fields[0], fields[1]));
+        }
+        return jobs;
+    }
+
+    private static void run(Job job, Path dir, List<String> options) {
+        long start = System.nanoTime();
+        var listing = new PrintStream(OutputStream.nullOutputStream());
+        var args = new ArrayList<String>(List.of("--generate", job.input, job.output));
+        args.addAll(options);
+        try {
+            Driver.compile(args, dir, listing, listing);
+        } catch (Throwable e) {
+            job.error = e;
+        }
+        job.nanos = System.nanoTime() - start;
+    }
+
+    /**
+     * --jobs 后面的线程数，不是数字时返回 0
+     */
+    private static int parseJobs(String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.1fms", nanos / 1e6);
+    }
+}
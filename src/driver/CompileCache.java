@@ -0,0 +1,247 @@
+package driver;
+
+import util.Hashing;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * 按内容寻址的编译结果缓存，用 --cache 目录 打开，--cache-size 给出大小上限（MiB）
+ * <p>
+ * 键是源码字节、编译器版本、模式和选项一起算的 SHA-256，编译器版本是编译器自己所有 class 文件的哈希，
+ * 所以换了编译器就不会用到旧的结果。每个键对应目录里的一个文件：magic、o0 的长度、o0、指令清单。
+ * <p>
+ * 写入时先写到同一目录下的临时文件再原子地改名，几个进程同时编译同一个文件也不会读到写了一半的结果。
+ * 命中时更新文件的修改时间，超过大小上限时按修改时间从旧到新删除，也就是 LRU。
+ */
+public final class CompileCache {
+    public static final long DEFAULT_SIZE = 256L << 20;
+    private static final int MAGIC = 0x4330_4345;
+    private static final String SUFFIX = ".entry";
+    private static final String TEMP_SUFFIX = ".tmp";
+    /** 临时文件这么久没动过，说明写它的进程已经不在了 */
+    private static final long STALE_TEMP_MILLIS = 10 * 60 * 1000;
+    private static final ConcurrentHashMap<Path, CompileCache> OPEN = new ConcurrentHashMap<>();
+    private static volatile byte[] compilerVersion;
+
+    private final Path dir;
+    /** 同一个目录后来用不同的 --cache-size 打开时会改 */
+    private volatile long maxSize;
+    // 上次清理之后写入的字节数，一个进程里第一次写入和之后每写够上限的 1/16 时才扫一遍目录
+    private long written = Long.MAX_VALUE / 2;
+
+    private CompileCache(Path dir, long maxSize) {
+        this.dir = dir;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * 打开缓存目录，同一个进程里同一个目录共用一个对象，大小上限用最后一次打开时给的
+     */
+    public static CompileCache open(Path dir, long maxSize) throws IOException {
+        Files.createDirectories(dir);
+        CompileCache cache = OPEN.computeIfAbsent(dir.toAbsolutePath().normalize(), d -> new CompileCache(d, maxSize));
+        cache.resize(maxSize);
+        return cache;
+    }
+
+    private synchronized void resize(long maxSize) {
+        if (maxSize != this.maxSize) {
+            this.maxSize = maxSize;
+            // 上限变了，下一次写入时就扫一遍目录
+            written = Long.MAX_VALUE / 2;
+        }
+    }
+
+    /**
+     * 算出一次编译的键
+     *
+     * @param source  源码的字节，编译时要用同一份，不能再读一遍文件
+     * @param options 影响输出的模式和选项
+     */
+    public String key(byte[] source, List<String> options) throws IOException {
+        MessageDigest digest = Hashing.sha256();
+        digest.update(compilerVersion());
+        for (String option : options) {
+            digest.update(option.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+        }
+        digest.update(source);
+        return Hashing.hex(digest.digest());
+    }
+
+    /**
+     * 查缓存，命中时把 o0 写到 output，指令清单写到 listing
+     *
+     * @return 有没有命中
+     */
+    public boolean fetch(String key, Path output, OutputStream listing) throws IOException {
+        Path entry = dir.resolve(key + SUFFIX);
+        byte[] o0;
+        byte[] text;
+        try (var in = new DataInputStream(Files.newInputStream(entry))) {
+            if (in.readInt() != MAGIC) {
+                return false;
+            }
+            o0 = new byte[in.readInt()];
+            in.readFully(o0);
+            text = in.readAllBytes();
+        } catch (NoSuchFileException | EOFException e) {
+            // 没有，或者正好被别的进程清理掉了
+            return false;
+        }
+        Files.write(output, o0);
+        listing.write(text);
+        try {
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (NoSuchFileException e) {
+            // 已经被清理掉了，不影响这次的结果
+        }
+        return true;
+    }
+
+    /**
+     * 把一次成功编译的结果放进缓存
+     */
+    public void store(String key, byte[] o0, byte[] listing) throws IOException {
+        Path temp = Files.createTempFile(dir, key, TEMP_SUFFIX);
+        try {
+            try (var out = new DataOutputStream(Files.newOutputStream(temp))) {
+                out.writeInt(MAGIC);
+                out.writeInt(o0.length);
+                out.write(o0);
+                out.write(listing);
+            }
+            Path entry = dir.resolve(key + SUFFIX);
+            try {
+                Files.move(temp, entry, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, entry, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        boolean trim;
+        synchronized (this) {
+            written += 8 + o0.length + listing.length;
+            trim = written > maxSize / 16;
+            if (trim) {
+                written = 0;
+            }
+        }
+        if (trim) {
+            trim();
+        }
+    }
+
+    /**
+     * 总大小超过上限时，从最久没用过的开始删；顺便删掉被杀掉的进程留下的临时文件
+     */
+    private void trim() throws IOException {
+        List<Path> entries;
+        List<Path> temps;
+        try (Stream<Path> files = Files.list(dir)) {
+            Map<Boolean, List<Path>> byKind = files
+                    .filter(p -> p.getFileName().toString().endsWith(SUFFIX) || p.getFileName().toString().endsWith(TEMP_SUFFIX))
+                    .collect(Collectors.partitioningBy(p -> p.getFileName().toString().endsWith(SUFFIX)));
+            entries = byKind.get(true);
+            temps = byKind.get(false);
+        }
+        long stale = System.currentTimeMillis() - STALE_TEMP_MILLIS;
+        for (Path temp : temps) {
+            try {
+                // 新的可能还有进程正在写
+                if (Files.getLastModifiedTime(temp).toMillis() < stale) {
+                    Files.deleteIfExists(temp);
+                }
+            } catch (NoSuchFileException e) {
+                // 刚写完改名了
+            }
+        }
+        var sized = new ArrayList<Entry>(entries.size());
+        long total = 0;
+        for (Path entry : entries) {
+            try {
+                long size = Files.size(entry);
+                sized.add(new Entry(entry, Files.getLastModifiedTime(entry), size));
+                total += size;
+            } catch (NoSuchFileException e) {
+                // 别的进程刚删掉
+            }
+        }
+        if (total <= maxSize) {
+            return;
+        }
+        sized.sort(Comparator.comparing(e -> e.used));
+        for (Entry e : sized) {
+            if (total <= maxSize) {
+                break;
+            }
+            Files.deleteIfExists(e.path);
+            total -= e.size;
+        }
+    }
+
+    private static class Entry {
+        final Path path;
+        final FileTime used;
+        final long size;
+
+        Entry(Path path, FileTime used, long size) {
+            this.path = path;
+            this.used = used;
+            this.size = size;
+        }
+    }
+
+    /**
+     * 编译器自己的版本：所有 class 文件（或者打包好的 jar）的哈希，一个进程里只算一次
+     */
+    private static byte[] compilerVersion() throws IOException {
+        byte[] version = compilerVersion;
+        if (version != null) {
+            return version;
+        }
+        MessageDigest digest = Hashing.sha256();
+        Path location;
+        try {
+            location = Path.of(CompileCache.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        } catch (URISyntaxException | NullPointerException e) {
+            throw new IOException("cannot locate compiler classes for the cache key", e);
+        }
+        if (Files.isDirectory(location)) {
+            List<Path> classes;
+            try (Stream<Path> files = Files.walk(location)) {
+                classes = files.filter(p -> p.toString().endsWith(".class")).sorted().collect(Collectors.toList());
+            }
+            for (Path file : classes) {
+                digest.update(location.relativize(file).toString().getBytes(StandardCharsets.UTF_8));
+                digest.update(Files.readAllBytes(file));
+            }
+        } else {
+            digest.update(Files.readAllBytes(location));
+        }
+        version = digest.digest();
+        compilerVersion = version;
+        return version;
+    }
+}
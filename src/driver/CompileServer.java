@@ -0,0 +1,216 @@
+package driver;
+
+import util.Hashing;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 常驻的编译服务器：JVM 只启动一次，之后每次编译都不用再加载类、重新预热 JIT
+ * <p>
+ * java App --serve 从标准输入读请求、往标准输出写回应；
+ * java App --serve --port N 在本机回环地址的 N 端口上监听（N 省略时是 DEFAULT_PORT），
+ * 每个连接只发一个请求，回应完服务器就关掉连接，客户端读到连接关闭就结束，见 src/c0c。
+ * <p>
+ * 回环地址上的端口本机的任何用户都连得上，而请求里的路径可以读写服务器所属用户能读写的任何文件，
+ * 所以端口模式下每个连接的第一行必须是口令文件（C0_TOKEN_FILE，默认 ~/.c0c-token）里的口令，
+ * 不对时只回应 "2 wrong token" 和 "exit 2"。口令文件不存在时服务器生成一个随机口令，权限是 0600；
+ * 文件对组或其他用户可读时服务器拒绝启动。标准输入输出模式只有启动服务器的人能用，不需要口令。
+ * <p>
+ * 请求是一行 UTF-8 文本，字段之间用制表符隔开：
+ * <pre>
+ * 工作目录 模式 输入文件 输出文件 [选项...]
+ * </pre>
+ * 后面几个字段和 java App 的命令行参数一样，相对路径相对于工作目录。模式只能是 MODES 里的几个，
+ * 其它模式回应一行错误，退出码是 2。
+ * 回应是若干行，每行开头两个字符说明这一行是什么：
+ * <pre>
+ * "1 " 标准输出的一行          "1-" 标准输出最后没有换行的半行
+ * "2 " 标准错误的一行          "2-" 标准错误最后没有换行的半行
+ * "exit N" 回应结束，N 是同样参数下 java App 的退出码
+ * </pre>
+ * 编译抛出异常时和命令行一样，在标准错误里打印异常和调用栈，退出码是 1。
+ */
+public final class CompileServer {
+    public static final int DEFAULT_PORT = 7380;
+    /** 服务器能处理的模式，其它模式（--generate-batch、--watch、--serve）要直接运行 java App */
+    public static final List<String> MODES = List.of("--tokenize", "--analyse", "--generate");
+    /** 口令文件不存在时生成的口令的字节数 */
+    private static final int TOKEN_BYTES = 32;
+
+    private CompileServer() {
+    }
+
+    /**
+     * @param args --serve 后面的参数
+     */
+    public static void main(List<String> args) throws IOException {
+        int i = args.indexOf("--port");
+        if (i < 0) {
+            // 标准输出留给协议用，编译过程中别的地方不小心打印的东西都改到标准错误
+            var out = new BufferedOutputStream(System.out);
+            System.setOut(System.err);
+            serve(System.in, out);
+            return;
+        }
+        int port = i + 1 < args.size() ? Integer.parseInt(args.get(i + 1)) : DEFAULT_PORT;
+        listen(port, token(tokenFile()));
+    }
+
+    /**
+     * 口令文件的位置：环境变量 C0_TOKEN_FILE，没有时是 ~/.c0c-token，和 src/c0c 一致
+     */
+    public static Path tokenFile() {
+        String file = System.getenv("C0_TOKEN_FILE");
+        return file != null && !file.isEmpty() ? Path.of(file) : Path.of(System.getProperty("user.home"), ".c0c-token");
+    }
+
+    /**
+     * 读出口令文件里的口令，文件不存在时生成一个只有自己能读写的
+     *
+     * @throws IOException 文件对组或其他用户可读，或者是空的
+     */
+    public static byte[] token(Path file) throws IOException {
+        try {
+            if (Files.getFileStore(file.toAbsolutePath().getParent()).supportsFileAttributeView(PosixFileAttributeView.class)) {
+                Files.createFile(file, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+            } else {
+                Files.createFile(file);
+            }
+            byte[] random = new byte[TOKEN_BYTES];
+            new SecureRandom().nextBytes(random);
+            Files.writeString(file, Hashing.hex(random) + "\n", StandardCharsets.US_ASCII);
+            System.err.println("created token file " + file);
+        } catch (FileAlreadyExistsException e) {
+            // 用已有的口令，c0c 也在读它
+        }
+        if (Files.getFileAttributeView(file, PosixFileAttributeView.class) != null) {
+            Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(file);
+            permissions.retainAll(Set.of(PosixFilePermission.GROUP_READ, PosixFilePermission.OTHERS_READ));
+            if (!permissions.isEmpty()) {
+                throw new IOException("token file " + file + " is readable by other users, run chmod 600 on it");
+            }
+        }
+        String token = Files.readString(file, StandardCharsets.US_ASCII).strip();
+        if (token.isEmpty()) {
+            throw new IOException("token file " + file + " is empty");
+        }
+        return token.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * 在本机回环地址上监听，每个连接用一个线程
+     *
+     * @param token 每个连接第一行要发的口令
+     */
+    public static void listen(int port, byte[] token) throws IOException {
+        ExecutorService connections = Executors.newCachedThreadPool();
+        try (var server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            System.err.println("listening on " + server.getLocalSocketAddress());
+            while (true) {
+                Socket socket = server.accept();
+                connections.execute(() -> {
+                    try (socket) {
+                        var reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                        var out = new BufferedOutputStream(socket.getOutputStream());
+                        String given = reader.readLine();
+                        if (given == null) {
+                            return;
+                        }
+                        // 比较的时间不随对上了几个字节变化
+                        if (!MessageDigest.isEqual(token, given.getBytes(StandardCharsets.UTF_8))) {
+                            out.write("2 wrong token\nexit 2\n".getBytes(StandardCharsets.US_ASCII));
+                            out.flush();
+                            return;
+                        }
+                        String request = reader.readLine();
+                        if (request != null) {
+                            respond(request, out);
+                        }
+                    } catch (IOException e) {
+                        // 客户端断开了，不影响其它连接
+                    }
+                });
+            }
+        } finally {
+            connections.shutdown();
+        }
+    }
+
+    /**
+     * 处理 in 里的请求，直到读完
+     */
+    public static void serve(InputStream in, OutputStream out) throws IOException {
+        var reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        String request;
+        while ((request = reader.readLine()) != null) {
+            if (!request.isEmpty()) {
+                respond(request, out);
+            }
+        }
+    }
+
+    /**
+     * 编译一个请求，把回应写到 out
+     */
+    private static void respond(String request, OutputStream out) throws IOException {
+        var stdout = new FrameOutputStream(out, '1');
+        var stderr = new FrameOutputStream(out, '2');
+        int status = compile(request,
+                new PrintStream(stdout, true, Charset.defaultCharset()),
+                new PrintStream(stderr, true, Charset.defaultCharset()));
+        stdout.finish();
+        stderr.finish();
+        synchronized (out) {
+            out.write(("exit " + status + "\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+        }
+    }
+
+    private static int compile(String request, PrintStream out, PrintStream err) {
+        String[] fields = request.split("\t", -1);
+        if (fields.length > 1 && !MODES.contains(fields[1])) {
+            // --generate-batch、--watch、--serve 要么是长时间运行的，要么自己管理输出，不能放在服务器里跑
+            err.println("the compile server only handles " + String.join(", ", MODES) + "; run java App " + fields[1] + " directly");
+            return 2;
+        }
+        if (fields.length < 4) {
+            err.println("usage: <cwd>\\t<mode>\\t<input>\\t<output>[\\t<option>...]");
+            return 2;
+        }
+        try {
+            return Driver.compile(Arrays.asList(fields).subList(1, fields.length), Path.of(fields[0]), out, err);
+        } catch (Throwable e) {
+            // 和命令行时没有捕获的异常一样报告
+            err.print("Exception in thread \"main\" ");
+            e.printStackTrace(err);
+            return 1;
+        } finally {
+            out.flush();
+            err.flush();
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package driver;
+
+import analyser.Analyser;
+import error.CompileError;
+import generator.Generator;
+import tokenizer.NameTable;
+import tokenizer.ParallelLexer;
+import tokenizer.StringIter;
+import tokenizer.TokenType;
+import tokenizer.TokenWriter;
+import tokenizer.Tokenizer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 一次编译：命令行的 java App 和编译服务器都走这里
+ * <p>
+ * 参数和命令行一样：模式、输入文件、输出文件，后面跟着选项。
+ * 标准输出和标准错误由调用方给出，编译错误原样抛出，由调用方决定怎么报告。
+ */
+public final class Driver {
+    private Driver() {
+    }
+
+    /**
+     * @param args 模式、输入文件、输出文件和选项
+     * @param cwd  相对路径相对的目录
+     * @param out  标准输出，--tokenize 的文本输出和 --generate 的指令清单写到这里
+     * @param err  标准错误
+     * @return 退出码
+     */
+    public static int compile(List<String> args, Path cwd, PrintStream out, PrintStream err) throws CompileError, IOException {
+        String mode = args.get(0);
+        Path input = cwd.resolve(args.get(1));
+        Path output = cwd.resolve(args.get(2));
+        List<String> options = args.subList(Math.min(3, args.size()), args.size());
+        // --cache 目录 [--cache-size MiB]：--generate 的结果按源码内容缓存起来，见 CompileCache
+        int cacheOption = options.indexOf("--cache");
+        if (mode.equals("--generate") && cacheOption >= 0) {
+            int sizeOption = options.indexOf("--cache-size");
+            long maxSize = sizeOption >= 0 ? Long.parseLong(options.get(sizeOption + 1)) << 20 : CompileCache.DEFAULT_SIZE;
+            var cache = CompileCache.open(cwd.resolve(options.get(cacheOption + 1)), maxSize);
+            return generateCached(cache, args, input, output, out, err);
+        }
+        try (var file = new FileOutputStream(output.toFile())) {
+            return compile(mode, input, options, file, out, err);
+        }
+    }
+
+    private static int compile(String mode, Path input, List<String> options, FileOutputStream file,
+                               PrintStream out, PrintStream err) throws CompileError, IOException {
+        // --stream：用固定大小的窗口边读边分析，不把整个文件放进内存
+        if (options.contains("--stream")) {
+            try (ReadableByteChannel channel = Files.newByteChannel(input)) {
+                return compile(mode, new StringIter(channel), options, file, out, err);
+            }
+        }
+        return compile(mode, new StringIter(input), options, file, out, err);
+    }
+
+    /**
+     * 带缓存的 --generate：命中时直接给出上次的 o0 和指令清单，否则照常编译，成功后放进缓存
+     * <p>
+     * 源码要整个读进来算键，所以 --stream 在这里不起作用（它还是键的一部分）
+     */
+    private static int generateCached(CompileCache cache, List<String> args, Path input, Path output,
+                                      PrintStream out, PrintStream err) throws CompileError, IOException {
+        var keyed = new ArrayList<String>();
+        keyed.add(args.get(0));
+        for (int i = 3; i < args.size(); i++) {
+            String option = args.get(i);
+            if (option.equals("--cache") || option.equals("--cache-size")) {
+                // 缓存自己的选项不影响输出
+                i++;
+            } else {
+                keyed.add(option);
+            }
+        }
+        // 只读一次文件：算键和编译用同一份字节，免得中间文件被改了，新的结果存到旧内容的键下面
+        byte[] source = Files.readAllBytes(input);
+        String key = cache.key(source, keyed);
+        if (cache.fetch(key, output, out)) {
+            out.flush();
+            return 0;
+        }
+        // 指令清单先攒起来，编译完（不管成不成功）再输出
+        var listing = new ByteArrayOutputStream();
+        try (var file = new FileOutputStream(output.toFile())) {
+            compile(args.get(0), new StringIter(source), keyed, file, new PrintStream(listing, true), err);
+        } finally {
+            listing.writeTo(out);
+            out.flush();
+        }
+        cache.store(key, Files.readAllBytes(output), listing.toByteArray());
+        return 0;
+    }
+
+    private static int compile(String mode, StringIter iter, List<String> options, FileOutputStream file,
+                               PrintStream out, PrintStream err) throws CompileError, IOException {
+        if (mode.equals("--tokenize")) {
+            return tokenize(iter, options, file, out, err);
+        } else if (mode.equals("--analyse")) {
+            analyser(iter, options).analyse();
+        } else if (mode.equals("--generate")) {
+            var analyzer = analyser(iter, options);
+            analyzer.analyse();
+            var generator = new Generator(new DataOutputStream(file), analyzer, out);
+            generator.generateo0();
+            out.flush();
+        }
+        return 0;
+    }
+
+    private static Analyser analyser(StringIter iter, List<String> options) throws CompileError {
+        var analyzer = new Analyser(ParallelLexer.tokenize(iter, new NameTable()));
+        // --no-optimize：按分析时生成的样子输出指令，不做任何优化
+        if (options.contains("--no-optimize")) {
+            analyzer.setPasses(List.of());
+        }
+        return analyzer;
+    }
+
+    private static int tokenize(StringIter iter, List<String> options, FileOutputStream file,
+                                PrintStream out, PrintStream err) throws IOException {
+        // --binary：把 token 按二进制格式写到输出文件里，格式见 TokenWriter，否则按文本输出到标准输出
+        // 二进制格式最后要写一个 EOF，文本格式不输出 EOF
+        boolean binary = options.contains("--binary");
+        TokenWriter writer;
+        if (binary) {
+            writer = TokenWriter.binary(file.getChannel(), iter.lines());
+        } else {
+            writer = TokenWriter.text(Channels.newChannel(out), Charset.defaultCharset(), iter.lines());
+        }
+        try {
+            if (iter.isStreaming()) {
+                // 边读边输出，不把 token 攒起来
+                var tokenizer = new Tokenizer(iter);
+                while (true) {
+                    var token = tokenizer.nextToken();
+                    if (token.getTokenType().equals(TokenType.EOF)) {
+                        if (binary) {
+                            writer.write(token);
+                        }
+                        break;
+                    }
+                    writer.write(token);
+                }
+            } else {
+                var tokens = ParallelLexer.tokenize(iter, new NameTable());
+                while (tokens.peek() != TokenType.EOF) {
+                    writer.write(tokens, tokens.advance());
+                }
+                if (binary) {
+                    writer.write(tokens, tokens.advance());
+                }
+            }
+            writer.flush();
+        } catch (Exception e) {
+            // 遇到错误不再往下读，已经识别出的 token 照样输出；输出失败时不能盖掉原来的错误
+            try {
+                writer.flush();
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            err.println(e);
+        }
+        // 输出文件和标准输出都是调用者的，这里只刷新不关闭
+        out.flush();
+        return 0;
+    }
+}
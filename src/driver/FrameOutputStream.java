@@ -0,0 +1,74 @@
+package driver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * 把写进来的内容按行装成编译服务器回应里的一帧，格式见 CompileServer
+ * <p>
+ * 标准输出和标准错误各用一个，共用同一个底层的流，写完整的一行时才往底层写
+ */
+class FrameOutputStream extends OutputStream {
+    private final OutputStream out;
+    private final byte channel;
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+    /**
+     * @param channel 这一路输出的编号，'1' 是标准输出，'2' 是标准错误
+     */
+    FrameOutputStream(OutputStream out, char channel) {
+        this.out = out;
+        this.channel = (byte) channel;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (b == '\n') {
+            emit(' ');
+        } else {
+            line.write(b);
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        int end = off + len;
+        int from = off;
+        for (int i = off; i < end; i++) {
+            if (b[i] == '\n') {
+                line.write(b, from, i - from);
+                emit(' ');
+                from = i + 1;
+            }
+        }
+        line.write(b, from, end - from);
+    }
+
+    /**
+     * 把最后没有换行的半行也发出去
+     */
+    void finish() throws IOException {
+        if (line.size() > 0) {
+            emit('-');
+        }
+    }
+
+    /**
+     * 编译过程中关掉标准输出（比如 --tokenize 写完时）不会关掉底层的连接
+     */
+    @Override
+    public void close() throws IOException {
+        finish();
+    }
+
+    private void emit(char kind) throws IOException {
+        synchronized (out) {
+            out.write(channel);
+            out.write(kind);
+            line.writeTo(out);
+            out.write('\n');
+        }
+        line.reset();
+    }
+}
@@ -0,0 +1,124 @@
+package driver;
+
+import analyser.Analyser;
+import analyser.FunctionCache;
+import generator.Generator;
+import tokenizer.NameTable;
+import tokenizer.ParallelLexer;
+import tokenizer.StringIter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 监视模式：java App --watch 输入文件 输出文件
+ * <p>
+ * 先编译一次，之后输入文件每次变化都重新生成输出文件。两次编译之间用 FunctionCache 记住每个函数体的结果，
+ * 只改了一个函数体时只重新分析这一个；全局变量或者函数签名变了就全部重新分析。
+ * 输出文件先写到临时文件再改名，别的进程不会读到写了一半的 o0。
+ * 每次编译的结果（用时、重新分析了几个函数或者错误）打印到标准错误，指令清单不输出。
+ */
+public final class WatchCompiler {
+    /** 编辑器保存文件时常常连着改好几次，等这么久没有新的变化再编译 */
+    private static final long SETTLE_MILLIS = 30;
+
+    private final Path input;
+    private final Path output;
+    private final PrintStream log;
+    private final FunctionCache functions = new FunctionCache();
+
+    private WatchCompiler(Path input, Path output, PrintStream log) {
+        this.input = input;
+        this.output = output;
+        this.log = log;
+    }
+
+    /**
+     * @param args --watch 后面的参数：输入文件、输出文件
+     */
+    public static void main(List<String> args, PrintStream log) throws IOException, InterruptedException {
+        Path input = Path.of(args.get(0)).toAbsolutePath();
+        Path output = Path.of(args.get(1)).toAbsolutePath();
+        new WatchCompiler(input, output, log).run();
+    }
+
+    private void run() throws IOException, InterruptedException {
+        try (WatchService watcher = input.getFileSystem().newWatchService()) {
+            // 监视的是所在的目录，编辑器常常是写一个新文件再改名过来
+            input.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            compile();
+            while (true) {
+                WatchKey key = watcher.take();
+                boolean changed = drain(key);
+                // 等这一串变化结束
+                while ((key = watcher.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                    changed |= drain(key);
+                }
+                if (changed) {
+                    compile();
+                }
+            }
+        } catch (ClosedWatchServiceException e) {
+            // 被关掉了，结束
+        }
+    }
+
+    /**
+     * @return 里面有没有输入文件的变化
+     */
+    private boolean drain(WatchKey key) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || input.getFileName().equals(event.context())) {
+                changed = true;
+            }
+        }
+        key.reset();
+        return changed;
+    }
+
+    private void compile() {
+        long start = System.nanoTime();
+        try {
+            var analyser = new Analyser(ParallelLexer.tokenize(new StringIter(input), new NameTable()));
+            analyser.setFunctionCache(functions);
+            analyser.analyse();
+            var bytes = new ByteArrayOutputStream();
+            new Generator(new DataOutputStream(bytes), analyser, null).generateo0();
+            write(bytes.toByteArray());
+            log.printf("compiled %s in %.1fms, reanalysed %d of %d functions%n", input.getFileName(),
+                    (System.nanoTime() - start) / 1e6, functions.getCount() - functions.getReused(), functions.getCount());
+        } catch (Throwable e) {
+            // 出错时保留上一次的输出，等下一次修改
+            log.println(e);
+        }
+    }
+
+    private void write(byte[] o0) throws IOException {
+        // 不用 createTempFile：它建出来的文件只有自己能读，改名之后输出文件的权限就变了
+        Path temp = output.resolveSibling("." + output.getFileName() + ".tmp");
+        try {
+            Files.write(temp, o0);
+            try {
+                Files.move(temp, output, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, output, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+}
@@ -1,4 +1,5 @@
 package error;
+import util.LineIndex;
 import util.Pos;
 
 public class AnalyzeError extends CompileError {
@@ -6,6 +7,8 @@ public class AnalyzeError extends CompileError {
 
     ErrorCode code;
     Pos pos;
+    // 还没换算成 Pos 的偏移，见 resolve
+    int offset = LineIndex.NONE;
 
     @Override
     public ErrorCode getErr() {
@@ -27,6 +30,26 @@ public class AnalyzeError extends CompileError {
         this.pos = pos;
     }
 
+    /**
+     * 只知道源码偏移的时候用，等到有行首偏移表的地方再调 resolve 算出 Pos
+     *
+     * @param offset 源码里的偏移，LineIndex.NONE 表示没有位置
+     */
+    public AnalyzeError(ErrorCode code, int offset) {
+        this.code = code;
+        this.offset = offset;
+    }
+
+    /**
+     * 用行首偏移表把偏移换算成 Pos，已经有 Pos 的不变
+     */
+    public AnalyzeError resolve(LineIndex lines) {
+        if (pos == null && offset != LineIndex.NONE) {
+            pos = lines.pos(offset);
+        }
+        return this;
+    }
+
     @Override
     public String toString() {
         return new StringBuilder().append("Analyze Error: ").append(code).append(", at: ").append(pos).toString();
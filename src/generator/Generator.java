@@ -3,23 +3,28 @@ package generator;
 import analyser.Analyser;
 import analyser.IdentType;
 import analyser.SymbolEntry;
-import analyser.SymbolTable;
 import instruction.Instruction;
 
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.util.ArrayList;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.List;
 
 public class Generator {
     DataOutputStream output;
     Analyser analyser;
     int magic=0x72303b3e;
     int version=1;
+    /** 生成时顺便打印的函数和指令清单，为 null 时不打印 */
+    PrintStream listing;
     public Generator(DataOutputStream output, Analyser analyser){
+        this(output,analyser,System.out);
+    }
+    public Generator(DataOutputStream output, Analyser analyser, PrintStream listing){
         this.output=output;
         this.analyser=analyser;
+        this.listing=listing;
     }
     public void generateo0() throws IOException {
         output.writeInt(this.magic);
@@ -30,16 +35,16 @@ public class Generator {
     private void generateGlobals() throws IOException {
         int count=analyser.globalTable.getCount();
         output.writeInt(count);
-        LinkedHashMap<String, SymbolEntry> table=analyser.globalTable.getSymbolTable();
-        for(Map.Entry<String, SymbolEntry> entry : table.entrySet()) {
-            output.writeBoolean(entry.getValue().isConstant());
-            if(entry.getValue().getType()==IdentType.INT||entry.getValue().getType()==IdentType.DOUBLE){
+        List<SymbolEntry> table=analyser.globalTable.getSymbols();
+        for(SymbolEntry entry : table) {
+            output.writeBoolean(entry.isConstant());
+            if(entry.getType()==IdentType.INT||entry.getType()==IdentType.DOUBLE){
                 output.writeInt(8);
-                output.writeLong((Long) entry.getValue().getValue());
+                output.writeLong((Long) entry.getValue());
             }
-            else if(entry.getValue().getType()==IdentType.STRING){
-                output.writeInt(((String)entry.getValue().getValue()).length());
-                output.write(((String) entry.getValue().getValue()).getBytes());
+            else if(entry.getType()==IdentType.STRING){
+                output.writeInt(((String)entry.getValue()).length());
+                output.write(((String) entry.getValue()).getBytes());
             }
         }
 
@@ -48,33 +53,23 @@ public class Generator {
     private void generateFn() throws IOException{
         int count=analyser._startTable.getCount();
         output.writeInt(count);
-        LinkedHashMap<String, SymbolEntry> table=analyser._startTable.getSymbolTable();
-        for(Map.Entry<String, SymbolEntry> entry : table.entrySet()) {
-            System.out.print("fn "+entry.getValue().getName()+" "+entry.getValue().getType());
-            output.writeInt((int) entry.getValue().getStackOffset());
-            if(entry.getValue().getType() == IdentType.VOID){
+        List<SymbolEntry> table=analyser._startTable.getSymbols();
+        for(SymbolEntry entry : table) {
+            output.writeInt((int) entry.getStackOffset());
+            if(entry.getType() == IdentType.VOID){
                 output.writeInt(0);
             }
-            else if(entry.getValue().getType() ==IdentType.INT||entry.getValue().getType() ==IdentType.DOUBLE){
+            else if(entry.getType() ==IdentType.INT||entry.getType() ==IdentType.DOUBLE){
                 output.writeInt(1);
             }
-            if(entry.getValue().getParam() == null){
-                output.writeInt(0);
-                System.out.print(" "+0);
-            }
-            else{
-                output.writeInt(entry.getValue().getParam().getCount());
-                System.out.print(" "+entry.getValue().getParam().getCount());
+            int params=entry.getParam() == null?0:entry.getParam().getCount();
+            int locs=entry.getLoc() == null?0:entry.getLoc().getCount();
+            output.writeInt(params);
+            output.writeInt(locs);
+            if(listing!=null){
+                listing.println("fn "+entry.getName()+" "+entry.getType()+" "+params+" "+locs);
             }
-            if(entry.getValue().getLoc()==null){
-                output.writeInt(0);
-                System.out.println(" "+0);
-            }else{
-                SymbolTable loc=entry.getValue().getLoc();
-                output.writeInt(loc.getCount());
-                System.out.println(" "+loc.getCount());
-            }
-            ArrayList<Instruction> instructions=entry.getValue().getInstruction();
+            ArrayList<Instruction> instructions=entry.getInstruction();
             output.writeInt(instructions.size());
             generateInstruction(instructions);
         }
@@ -83,7 +78,9 @@ public class Generator {
     private void generateInstruction(ArrayList<Instruction> instructions) throws IOException {
         for(int i=0;i<instructions.size();i++){
             output.write(instructions.get(i).toByte());
-            System.out.println(i+":"+instructions.get(i).toString());
+            if(listing!=null){
+                listing.println(i+":"+instructions.get(i).toString());
+            }
         }
     }
 }
\ No newline at end of file
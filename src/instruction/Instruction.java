@@ -22,6 +22,11 @@ public class Instruction {
         this.x = 0;
     }
 
+    public Instruction(Instruction instruction) {
+        this.opt = instruction.opt;
+        this.x = instruction.x;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o)
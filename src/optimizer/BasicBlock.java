@@ -0,0 +1,101 @@
+package optimizer;
+
+import instruction.Instruction;
+import instruction.Operation;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 基本块：一段只能从开头进、从结尾出的指令
+ * <p>
+ * 结尾的跳转不放在 instructions 里，而是记成 branch 和 target，跳转目标是另一个块而不是偏移；
+ * 条件跳转不成立、或者块没有以跳转结尾时，接着执行 next。以 ret 结尾的块没有后继，ret 留在 instructions 里。
+ */
+public final class BasicBlock {
+    /** 块的编号，就是它的标号，同一个 ControlFlowGraph 里不重复 */
+    final int id;
+    /** 块里除了结尾跳转以外的指令 */
+    final ArrayList<Instruction> instructions = new ArrayList<>();
+    /** 结尾的 br、brtrue、brfalse，没有时是 null */
+    Operation branch = null;
+    /** 跳转的目标 */
+    BasicBlock target = null;
+    /** 顺序执行下去的后继，块以 br 或 ret 结尾时是 null */
+    BasicBlock next = null;
+    /** 前驱，由 ControlFlowGraph.computePredecessors 算出 */
+    final List<BasicBlock> predecessors = new ArrayList<>();
+
+    BasicBlock(int id) {
+        this.id = id;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public List<Instruction> getInstructions() {
+        return instructions;
+    }
+
+    public Operation getBranch() {
+        return branch;
+    }
+
+    public BasicBlock getTarget() {
+        return target;
+    }
+
+    public BasicBlock getNext() {
+        return next;
+    }
+
+    public List<BasicBlock> getPredecessors() {
+        return predecessors;
+    }
+
+    /**
+     * 后继：先是跳转目标，再是顺序执行的后继
+     */
+    public List<BasicBlock> successors() {
+        var successors = new ArrayList<BasicBlock>(2);
+        if (target != null) {
+            successors.add(target);
+        }
+        if (next != null && next != target) {
+            successors.add(next);
+        }
+        return successors;
+    }
+
+    /**
+     * 以 ret 结尾，执行完就离开函数
+     */
+    public boolean returns() {
+        return branch == null && !instructions.isEmpty()
+                && instructions.get(instructions.size() - 1).getOpt() == Operation.ret;
+    }
+
+    /**
+     * 把结尾改成跳到 target 的 br
+     */
+    void jumpTo(BasicBlock target) {
+        this.branch = Operation.br;
+        this.target = target;
+        this.next = null;
+    }
+
+    /**
+     * 去掉结尾的跳转，顺序执行到 next，next 是 null 时块应该以 ret 结尾
+     */
+    void fallTo(BasicBlock next) {
+        this.branch = null;
+        this.target = null;
+        this.next = next;
+    }
+
+    @Override
+    public String toString() {
+        return id < 0 ? "exit" : "L" + id;
+    }
+}
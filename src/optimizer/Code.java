@@ -0,0 +1,183 @@
+package optimizer;
+
+import instruction.Instruction;
+import instruction.Operation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * 优化时用的一个函数的指令：跳转换成绝对下标，删掉的指令只做标记，最后 writeBack 时再重新算相对偏移
+ * <p>
+ * 下标一直是原来列表里的下标。跳到被删掉的指令，就是跳到它后面第一条没删的指令；
+ * 下标 size() 表示函数末尾，跳转可以跳到那里。
+ */
+public final class Code {
+    private static final int NONE = -1;
+
+    private final ArrayList<Instruction> instructions;
+    private final Operation[] ops;
+    /** 跳转指令的目标（可能已经被删掉），不是跳转时是 NONE */
+    private final int[] targets;
+    /** 有几条跳转指令跳到这里，跳到被删掉的指令的算在它后面的指令上 */
+    private final int[] incoming;
+    /** 没删的指令指向自己，删掉的指向后面，找的时候顺便压缩路径 */
+    private final int[] forward;
+
+    public Code(ArrayList<Instruction> instructions) {
+        int n = instructions.size();
+        this.instructions = instructions;
+        this.ops = new Operation[n];
+        this.targets = new int[n];
+        this.incoming = new int[n + 1];
+        this.forward = new int[n + 1];
+        Arrays.fill(targets, NONE);
+        for (int i = 0; i <= n; i++) {
+            forward[i] = i;
+        }
+        for (int i = 0; i < n; i++) {
+            Instruction instruction = instructions.get(i);
+            ops[i] = instruction.getOpt();
+            if (isBranch(ops[i])) {
+                long target = i + 1 + instruction.getX();
+                if (target < 0 || target > n) {
+                    throw new IllegalStateException("branch at " + i + " jumps outside the function: " + instruction);
+                }
+                targets[i] = (int) target;
+                incoming[(int) target]++;
+            }
+        }
+    }
+
+    public static boolean isBranch(Operation op) {
+        return op == Operation.br || op == Operation.brtrue || op == Operation.brfalse;
+    }
+
+    public int size() {
+        return ops.length;
+    }
+
+    public Operation op(int i) {
+        return ops[i];
+    }
+
+    /**
+     * 换掉指令的操作，跳转换成不是跳转的操作时它不再跳到原来的目标
+     */
+    public void setOp(int i, Operation op) {
+        if (targets[i] != NONE && !isBranch(op)) {
+            incoming[target(i)]--;
+            targets[i] = NONE;
+        }
+        ops[i] = op;
+    }
+
+    /**
+     * 换成一条不是跳转的指令，原来是跳转时它不再跳到原来的目标
+     */
+    public void replace(int i, Instruction instruction) {
+        setOp(i, instruction.getOpt());
+        instructions.set(i, instruction);
+    }
+
+    /**
+     * 不是跳转的指令原来的样子
+     */
+    public Instruction get(int i) {
+        return instructions.get(i);
+    }
+
+    public boolean isLive(int i) {
+        return forward[i] == i;
+    }
+
+    /**
+     * i 后面第一条没删的指令，没有时是 size()
+     */
+    public int next(int i) {
+        return find(i + 1);
+    }
+
+    /**
+     * 第一条没删的指令，没有时是 size()
+     */
+    public int first() {
+        return find(0);
+    }
+
+    /**
+     * 跳转指令实际跳到的、没删的指令
+     */
+    public int target(int i) {
+        return find(targets[i]);
+    }
+
+    public void setTarget(int i, int target) {
+        incoming[target(i)]--;
+        targets[i] = target;
+        incoming[find(target)]++;
+    }
+
+    /**
+     * 有没有跳转指令跳到这里
+     */
+    public boolean isTarget(int i) {
+        return incoming[i] > 0;
+    }
+
+    /**
+     * 删掉一条指令，跳到它的跳转改为跳到它后面的指令
+     */
+    public void remove(int i) {
+        if (targets[i] != NONE) {
+            incoming[target(i)]--;
+        }
+        forward[i] = i + 1;
+        incoming[find(i + 1)] += incoming[i];
+        incoming[i] = 0;
+    }
+
+    /**
+     * 把结果写回原来的列表，重新算跳转的相对偏移
+     */
+    public void writeBack() {
+        int n = ops.length;
+        int[] index = new int[n + 1];
+        int count = 0;
+        for (int i = 0; i < n; i++) {
+            index[i] = count;
+            if (isLive(i)) {
+                count++;
+            }
+        }
+        index[n] = count;
+        var result = new ArrayList<Instruction>(count);
+        for (int i = 0; i < n; i++) {
+            if (!isLive(i)) {
+                continue;
+            }
+            if (targets[i] != NONE) {
+                result.add(new Instruction(ops[i], (long) (index[target(i)] - index[i] - 1)));
+            } else if (ops[i] != instructions.get(i).getOpt()) {
+                result.add(new Instruction(ops[i], instructions.get(i).getX()));
+            } else {
+                result.add(instructions.get(i));
+            }
+        }
+        instructions.clear();
+        instructions.addAll(result);
+    }
+
+    private int find(int i) {
+        int root = i;
+        while (forward[root] != root) {
+            root = forward[root];
+        }
+        while (forward[i] != root) {
+            int next = forward[i];
+            forward[i] = root;
+            i = next;
+        }
+        return root;
+    }
+}
@@ -0,0 +1,171 @@
+package optimizer;
+
+import instruction.Instruction;
+import instruction.Operation;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 常量折叠：push a; 一元运算 和 push a; push b; 二元运算 在编译时算出来，换成一条 push
+ * <p>
+ * 算法和虚拟机一样：int 按 64 位补码回绕，double 用 IEEE-754 的位模式保存（同 Tokenizer 里的 doubleToLongBits）。
+ * 运行时才会出错或者结果依赖平台的不折叠，留给虚拟机：除以零、Long.MIN_VALUE / -1、
+ * 结果是 NaN、NaN 参与比较、超出 long 范围的 ftoi。
+ * 被跳转指向的指令不能和前面的合并，折叠只在一段顺序执行的指令里进行。
+ */
+public final class ConstantFolding implements Pass {
+    @Override
+    public void run(ArrayList<Instruction> instructions) {
+        var code = new Code(instructions);
+        boolean changed = true;
+        boolean any = false;
+        // 折出来的 push 可能又能和前后的合并，一直做到没有能折叠的
+        while (changed) {
+            changed = false;
+            for (int i = code.first(); i < code.size(); i = code.next(i)) {
+                while (fold(code, i)) {
+                    changed = true;
+                }
+            }
+            any |= changed;
+        }
+        if (any) {
+            code.writeBack();
+        }
+    }
+
+    private static boolean fold(Code code, int i) {
+        if (code.op(i) != Operation.push) {
+            return false;
+        }
+        int j = code.next(i);
+        if (j == code.size() || code.isTarget(j)) {
+            return false;
+        }
+        long a = code.get(i).getX();
+        Long result = unary(code.op(j), a);
+        if (result != null) {
+            code.replace(i, new Instruction(Operation.push, result));
+            code.remove(j);
+            return true;
+        }
+        if (code.op(j) != Operation.push) {
+            return false;
+        }
+        int k = code.next(j);
+        if (k == code.size() || code.isTarget(k)) {
+            return false;
+        }
+        result = binary(code.op(k), a, code.get(j).getX());
+        if (result == null) {
+            return false;
+        }
+        code.replace(i, new Instruction(Operation.push, result));
+        code.remove(j);
+        code.remove(k);
+        return true;
+    }
+
+    /**
+     * 算一段只有 push 和能折叠的运算的指令，比如 const 的初始值
+     *
+     * @return 算完栈上正好剩一个值时是这个值，否则是 null
+     */
+    public static Long evaluate(List<Instruction> instructions) {
+        var stack = new ArrayDeque<Long>();
+        for (Instruction instruction : instructions) {
+            Operation op = instruction.getOpt();
+            if (op == Operation.push) {
+                stack.push(instruction.getX());
+                continue;
+            }
+            if (stack.isEmpty()) {
+                return null;
+            }
+            Long result = unary(op, stack.peek());
+            if (result != null) {
+                stack.pop();
+                stack.push(result);
+                continue;
+            }
+            if (stack.size() < 2) {
+                return null;
+            }
+            long b = stack.pop();
+            result = binary(op, stack.pop(), b);
+            if (result == null) {
+                return null;
+            }
+            stack.push(result);
+        }
+        return stack.size() == 1 ? stack.peek() : null;
+    }
+
+    /**
+     * @return 栈顶是 a 时 op 的结果，不能折叠时是 null
+     */
+    static Long unary(Operation op, long a) {
+        double d = Double.longBitsToDouble(a);
+        switch (op) {
+            case negi:
+                return -a;
+            case negf:
+                return Double.isNaN(d) ? null : bits(-d);
+            case itof:
+                return bits((double) a);
+            case ftoi:
+                // Long.MIN_VALUE 和 Long.MAX_VALUE 本身可以表示，再往外就要看虚拟机怎么处理了
+                return d >= -0x1p63 && d < 0x1p63 ? (long) d : null;
+            case setlt:
+                return a < 0 ? 1L : 0L;
+            case setgt:
+                return a > 0 ? 1L : 0L;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return 次栈顶是 a、栈顶是 b 时 op 的结果，不能折叠时是 null
+     */
+    static Long binary(Operation op, long a, long b) {
+        double x = Double.longBitsToDouble(a);
+        double y = Double.longBitsToDouble(b);
+        switch (op) {
+            case addi:
+                return a + b;
+            case subi:
+                return a - b;
+            case muli:
+                return a * b;
+            case divi:
+                return b == 0 || (a == Long.MIN_VALUE && b == -1) ? null : a / b;
+            case cmpi:
+                return (long) Long.compare(a, b);
+            case addf:
+                return bits(x + y);
+            case subf:
+                return bits(x - y);
+            case mulf:
+                return bits(x * y);
+            case divf:
+                return y == 0 ? null : bits(x / y);
+            case cmpf:
+                if (Double.isNaN(x) || Double.isNaN(y)) {
+                    return null;
+                }
+                return x < y ? -1L : x > y ? 1L : 0L;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * double 的位模式，结果是 NaN 时不折叠
+     */
+    private static Long bits(double d) {
+        return Double.isNaN(d) ? null : Double.doubleToLongBits(d);
+    }
+}
@@ -0,0 +1,174 @@
+package optimizer;
+
+import instruction.Instruction;
+import instruction.Operation;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 一个函数的控制流图：指令按跳转切成基本块，块之间用引用连起来，不再有相对偏移
+ * <p>
+ * build 从 Analyser 生成的指令建图，优化在块上改跳转、增删块、调整 blocks 的顺序，
+ * lower 再按 blocks 的顺序排回指令列表，重新算每个跳转的偏移：
+ * 顺序执行的后继不是排在后面的那个块时补一条 br。
+ * blocks 的最后一个总是 exit，它是函数末尾的空块，跳到函数末尾就是跳到它。
+ */
+public final class ControlFlowGraph {
+    /** 块按在函数里的顺序排列，第一个是入口，最后一个是 exit */
+    final ArrayList<BasicBlock> blocks = new ArrayList<>();
+    final BasicBlock exit;
+    private int nextId = 0;
+
+    private ControlFlowGraph(int blocks) {
+        this.blocks.ensureCapacity(blocks);
+        this.exit = new BasicBlock(-1);
+    }
+
+    /**
+     * 从一个函数的指令建图，算好前驱
+     */
+    public static ControlFlowGraph build(List<Instruction> instructions) {
+        int n = instructions.size();
+        // 块的开头：函数开头、跳转目标、跳转和 ret 的下一条
+        boolean[] leader = new boolean[n + 1];
+        leader[0] = true;
+        leader[n] = true;
+        int count = 0;
+        for (int i = 0; i < n; i++) {
+            Instruction instruction = instructions.get(i);
+            Operation op = instruction.getOpt();
+            if (Code.isBranch(op)) {
+                long target = i + 1 + instruction.getX();
+                if (target < 0 || target > n) {
+                    throw new IllegalStateException("branch at " + i + " jumps outside the function: " + instruction);
+                }
+                leader[(int) target] = true;
+                leader[i + 1] = true;
+            } else if (op == Operation.ret) {
+                leader[i + 1] = true;
+            }
+        }
+        for (boolean start : leader) {
+            if (start) {
+                count++;
+            }
+        }
+
+        var graph = new ControlFlowGraph(count);
+        var at = new BasicBlock[n + 1];
+        for (int i = 0; i < n; i++) {
+            if (leader[i]) {
+                at[i] = graph.newBlock();
+                graph.blocks.add(at[i]);
+            }
+        }
+        at[n] = graph.exit;
+        graph.blocks.add(graph.exit);
+
+        BasicBlock block = null;
+        for (int i = 0; i < n; i++) {
+            if (leader[i]) {
+                block = at[i];
+            }
+            Instruction instruction = instructions.get(i);
+            Operation op = instruction.getOpt();
+            if (Code.isBranch(op)) {
+                block.branch = op;
+                block.target = at[(int) (i + 1 + instruction.getX())];
+                if (op != Operation.br) {
+                    block.next = at[i + 1];
+                }
+            } else {
+                block.instructions.add(instruction);
+                if (op != Operation.ret && leader[i + 1]) {
+                    block.next = at[i + 1];
+                }
+            }
+        }
+        graph.computePredecessors();
+        return graph;
+    }
+
+    /**
+     * 新建一个块，要自己放进 blocks 里
+     */
+    BasicBlock newBlock() {
+        return new BasicBlock(nextId++);
+    }
+
+    public BasicBlock entry() {
+        return blocks.get(0);
+    }
+
+    public BasicBlock getExit() {
+        return exit;
+    }
+
+    public List<BasicBlock> getBlocks() {
+        return blocks;
+    }
+
+    /**
+     * 改过跳转之后重新算所有块的前驱
+     */
+    public void computePredecessors() {
+        for (BasicBlock block : blocks) {
+            block.predecessors.clear();
+        }
+        for (BasicBlock block : blocks) {
+            for (BasicBlock successor : block.successors()) {
+                successor.predecessors.add(block);
+            }
+        }
+    }
+
+    /**
+     * 按 blocks 的顺序把指令写回 instructions
+     */
+    public void lower(ArrayList<Instruction> instructions) {
+        if (blocks.get(blocks.size() - 1) != exit) {
+            throw new IllegalStateException("exit must be the last block");
+        }
+        // exit 的编号是 -1，放在最后一格
+        int[] start = new int[nextId + 1];
+        int size = 0;
+        for (int b = 0; b < blocks.size(); b++) {
+            BasicBlock block = blocks.get(b);
+            start[slot(block)] = size;
+            size += block.instructions.size();
+            if (block.branch != null) {
+                size++;
+            }
+            if (needsJump(b)) {
+                size++;
+            }
+        }
+
+        var result = new ArrayList<Instruction>(size);
+        for (int b = 0; b < blocks.size(); b++) {
+            BasicBlock block = blocks.get(b);
+            result.addAll(block.instructions);
+            if (block.branch != null) {
+                result.add(new Instruction(block.branch, (long) (start[slot(block.target)] - result.size() - 1)));
+            }
+            if (needsJump(b)) {
+                result.add(new Instruction(Operation.br, (long) (start[slot(block.next)] - result.size() - 1)));
+            }
+        }
+        instructions.clear();
+        instructions.addAll(result);
+    }
+
+    /**
+     * 顺序执行的后继没有紧跟在后面，要补一条 br
+     */
+    private boolean needsJump(int b) {
+        BasicBlock next = blocks.get(b).next;
+        return next != null && (b + 1 == blocks.size() || blocks.get(b + 1) != next);
+    }
+
+    private int slot(BasicBlock block) {
+        return block == exit ? nextId : block.id;
+    }
+}
@@ -0,0 +1,151 @@
+package optimizer;
+
+import instruction.Instruction;
+import instruction.Operation;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+/**
+ * 跳转串接和不可达代码删除，在控制流图上做
+ * <ul>
+ *     <li>跳到只有一条 br 的空块（if/else 嵌套时的 br 接 br），直接跳到最后的目标；</li>
+ *     <li>br 到只有一条 ret 的块，换成 ret；</li>
+ *     <li>条件是常量的 brtrue、brfalse（常量折叠之后的 push c），换成 br 或者去掉；
+ *     两边去同一个块的条件跳转换成 pop；</li>
+ *     <li>从入口走不到的块删掉，比如 then 以 return 结尾时跳过 else 的 br、最后一句已经 return 之后补的 ret；</li>
+ *     <li>跳到紧跟在后面的块的 br 去掉，条件跳转的目标紧跟在后面时把条件反过来，省掉一条 br。</li>
+ * </ul>
+ */
+public final class JumpThreading implements Pass {
+    @Override
+    public void run(ArrayList<Instruction> instructions) {
+        ControlFlowGraph graph = ControlFlowGraph.build(instructions);
+        boolean changed = false;
+        boolean again = true;
+        while (again) {
+            again = false;
+            for (BasicBlock block : graph.blocks) {
+                again |= simplify(block);
+            }
+            changed |= again;
+        }
+        changed |= removeUnreachable(graph);
+        changed |= fallThrough(graph);
+        if (changed) {
+            graph.lower(instructions);
+        }
+    }
+
+    /**
+     * 化简一个块的结尾
+     *
+     * @return 有没有改动
+     */
+    private static boolean simplify(BasicBlock block) {
+        boolean changed = false;
+        if (block.target != null) {
+            BasicBlock target = destination(block.target);
+            changed |= target != block.target;
+            block.target = target;
+        }
+        if (block.next != null) {
+            BasicBlock next = destination(block.next);
+            changed |= next != block.next;
+            block.next = next;
+        }
+        if (block.branch == Operation.br && isReturn(block.target)) {
+            block.instructions.add(block.target.instructions.get(0));
+            block.fallTo(null);
+            return true;
+        }
+        if (block.branch == Operation.brtrue || block.branch == Operation.brfalse) {
+            int last = block.instructions.size() - 1;
+            if (last >= 0 && block.instructions.get(last).getOpt() == Operation.push) {
+                // 条件在编译时就知道
+                boolean taken = (block.instructions.get(last).getX() != 0) == (block.branch == Operation.brtrue);
+                block.instructions.remove(last);
+                if (taken) {
+                    block.jumpTo(block.target);
+                } else {
+                    block.fallTo(block.next);
+                }
+                return true;
+            }
+            if (block.target == block.next) {
+                // 跳不跳都去同一个地方，只需要弹出条件
+                block.instructions.add(new Instruction(Operation.pop));
+                block.fallTo(block.next);
+                return true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * 跳到 block 实际会走到哪个块：跳过只有一条 br 或者什么都没有的块
+     */
+    private static BasicBlock destination(BasicBlock block) {
+        var seen = new HashSet<BasicBlock>();
+        while (block.instructions.isEmpty() && seen.add(block)) {
+            if (block.branch == Operation.br) {
+                block = block.target;
+            } else if (block.branch == null && block.next != null) {
+                block = block.next;
+            } else {
+                break;
+            }
+        }
+        // 空的死循环就留着原样
+        return block;
+    }
+
+    private static boolean isReturn(BasicBlock block) {
+        return block.branch == null && block.instructions.size() == 1 && block.returns();
+    }
+
+    /**
+     * 删掉从入口走不到的块，exit 总是留着
+     */
+    private static boolean removeUnreachable(ControlFlowGraph graph) {
+        var reached = new HashSet<BasicBlock>();
+        var work = new ArrayDeque<BasicBlock>();
+        reached.add(graph.entry());
+        work.add(graph.entry());
+        while (!work.isEmpty()) {
+            for (BasicBlock successor : work.poll().successors()) {
+                if (reached.add(successor)) {
+                    work.add(successor);
+                }
+            }
+        }
+        boolean changed = graph.blocks.removeIf(block -> block != graph.exit && !reached.contains(block));
+        if (changed) {
+            graph.computePredecessors();
+        }
+        return changed;
+    }
+
+    /**
+     * 按现在的排列，去掉跳到下一个块的 br，条件跳转的目标是下一个块时把条件反过来
+     */
+    private static boolean fallThrough(ControlFlowGraph graph) {
+        boolean changed = false;
+        for (int b = 0; b + 1 < graph.blocks.size(); b++) {
+            BasicBlock block = graph.blocks.get(b);
+            BasicBlock following = graph.blocks.get(b + 1);
+            if (block.branch == Operation.br && block.target == following) {
+                block.fallTo(following);
+                changed = true;
+            } else if (block.branch != null && block.branch != Operation.br
+                    && block.target == following && block.next != following) {
+                block.branch = block.branch == Operation.brtrue ? Operation.brfalse : Operation.brtrue;
+                block.target = block.next;
+                block.next = following;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+}
@@ -0,0 +1,86 @@
+package optimizer;
+
+import instruction.Instruction;
+import instruction.Operation;
+
+import java.util.ArrayList;
+
+/**
+ * 循环旋转：把 while 的条件复制到跳回循环开头的地方，每一轮只执行一条条件跳转
+ * <p>
+ * Analyser 生成的 while 是：条件；不成立时跳出；循环体；br 回到条件。每一轮至少要执行两条跳转。
+ * 旋转之后循环体末尾（以及 continue）的 br 换成条件的一份拷贝加一条跳回循环体开头的条件跳转，
+ * 条件不成立时顺序执行到循环后面；原来开头的条件只在第一次进入循环时检查。
+ * break 和 continue 在控制流图里只是普通的边，不用特别处理。
+ * <p>
+ * 条件要正好是一个块（比较或者一个值，后面一条条件跳转），太长的条件不复制。
+ */
+public final class LoopRotation implements Pass {
+    /** 条件超过这么多条指令时不复制 */
+    private static final int MAX_CONDITION = 32;
+
+    @Override
+    public void run(ArrayList<Instruction> instructions) {
+        ControlFlowGraph graph = ControlFlowGraph.build(instructions);
+        var blocks = graph.blocks;
+        // 块在排列里的位置，exit 的编号是 -1，放在最后一格
+        int[] position = new int[blocks.size() + 1];
+        for (int b = 0; b < blocks.size(); b++) {
+            BasicBlock block = blocks.get(b);
+            position[block == graph.exit ? blocks.size() : block.id] = b;
+        }
+        boolean changed = false;
+        for (int b = 0; b < blocks.size(); b++) {
+            BasicBlock latch = blocks.get(b);
+            if (latch.branch != Operation.br || latch.target == graph.exit) {
+                continue;
+            }
+            BasicBlock header = latch.target;
+            int h = position[header.id];
+            if (h > b || header.branch == null || header.branch == Operation.br
+                    || header.instructions.isEmpty() || header.instructions.size() > MAX_CONDITION) {
+                continue;
+            }
+            // 循环体是排在条件和这条 br 之间的块
+            boolean targetInside = inside(graph, position, header.target, h, b);
+            boolean nextInside = inside(graph, position, header.next, h, b);
+            Operation stay;
+            BasicBlock body;
+            BasicBlock exit;
+            if (targetInside && !nextInside) {
+                stay = header.branch;
+                body = header.target;
+                exit = header.next;
+            } else if (nextInside && !targetInside) {
+                stay = header.branch == Operation.brtrue ? Operation.brfalse : Operation.brtrue;
+                body = header.next;
+                exit = header.target;
+            } else {
+                continue;
+            }
+            // 复制出新的对象，之后的 pass 原地改写其中一份时不能影响另一份
+            for (Instruction instruction : header.instructions) {
+                latch.instructions.add(new Instruction(instruction));
+            }
+            latch.branch = stay;
+            latch.target = body;
+            latch.next = exit;
+            changed = true;
+        }
+        if (changed) {
+            graph.computePredecessors();
+            graph.lower(instructions);
+        }
+    }
+
+    /**
+     * block 排在位置 h 之后、b 及以前
+     */
+    private static boolean inside(ControlFlowGraph graph, int[] position, BasicBlock block, int h, int b) {
+        if (block == graph.exit) {
+            return false;
+        }
+        int p = position[block.id];
+        return p > h && p <= b;
+    }
+}
@@ -0,0 +1,21 @@
+package optimizer;
+
+import instruction.Instruction;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 对一个函数的指令做的一次变换，在函数体分析完之后、生成 o0 之前运行
+ * <p>
+ * 各个函数体在不同的线程里分析，同一个 Pass 对象会被同时调用，不能有可变的状态。
+ */
+public interface Pass {
+    /** 默认打开的优化 */
+    List<Pass> DEFAULT = List.of(new ConstantFolding(), new Peephole(), new JumpThreading(), new LoopRotation());
+
+    /**
+     * 原地改写一个函数的指令，br、brtrue、brfalse 的相对偏移要保持正确
+     */
+    void run(ArrayList<Instruction> instructions);
+}
@@ -0,0 +1,137 @@
+package optimizer;
+
+import instruction.Instruction;
+import instruction.Operation;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+/**
+ * 窥孔优化：在相邻的几条指令上按规则表改写，直到没有规则能用
+ * <p>
+ * 规则看到的是删掉指令之后的窗口，窗口中间的指令被跳转指向时不能和前面的合并。
+ */
+public final class Peephole implements Pass {
+    /**
+     * 一条改写规则
+     */
+    interface Rule {
+        /**
+         * 看从 i 开始的几条指令，能改写就改写
+         *
+         * @return 有没有改写
+         */
+        boolean apply(Code code, int i);
+    }
+
+    /** 压栈一个值、没有别的作用的指令，后面紧跟 pop 时两条都可以删掉 */
+    private static final EnumSet<Operation> PURE_PUSH =
+            EnumSet.of(Operation.push, Operation.dup, Operation.loca, Operation.arga, Operation.globa);
+
+    private static final List<Rule> RULES = List.of(
+            Peephole::removeNop,
+            Peephole::removeJumpToNext,
+            Peephole::invertBranchOverJump,
+            Peephole::removeDoubleNegation,
+            Peephole::removePushPop
+    );
+
+    @Override
+    public void run(ArrayList<Instruction> instructions) {
+        var code = new Code(instructions);
+        boolean changed = true;
+        boolean any = false;
+        while (changed) {
+            changed = false;
+            for (int i = code.first(); i < code.size(); i = code.next(i)) {
+                for (Rule rule : RULES) {
+                    if (rule.apply(code, i)) {
+                        changed = true;
+                        break;
+                    }
+                }
+            }
+            any |= changed;
+        }
+        if (any) {
+            code.writeBack();
+        }
+    }
+
+    private static boolean removeNop(Code code, int i) {
+        if (code.op(i) != Operation.nop) {
+            return false;
+        }
+        code.remove(i);
+        return true;
+    }
+
+    /**
+     * 跳到下一条的 br 什么也不做（没有 else 的 if 后面的 br 0，while 开头的 br 0）；
+     * 跳到下一条的 brtrue、brfalse 只是弹出条件
+     */
+    private static boolean removeJumpToNext(Code code, int i) {
+        if (!Code.isBranch(code.op(i)) || code.target(i) != code.next(i)) {
+            return false;
+        }
+        if (code.op(i) == Operation.br) {
+            code.remove(i);
+        } else {
+            code.setOp(i, Operation.pop);
+        }
+        return true;
+    }
+
+    /**
+     * 条件后面的 brtrue 1; br x 就是 brfalse x，brfalse 1; br x 就是 brtrue x
+     */
+    private static boolean invertBranchOverJump(Code code, int i) {
+        Operation op = code.op(i);
+        if (op != Operation.brtrue && op != Operation.brfalse) {
+            return false;
+        }
+        int jump = code.next(i);
+        if (jump == code.size() || code.op(jump) != Operation.br || code.isTarget(jump)
+                || code.target(i) != code.next(jump) || code.target(jump) == jump) {
+            return false;
+        }
+        code.setOp(i, op == Operation.brtrue ? Operation.brfalse : Operation.brtrue);
+        code.setTarget(i, code.target(jump));
+        code.remove(jump);
+        return true;
+    }
+
+    /**
+     * negi negi、negf negf 什么也不做
+     */
+    private static boolean removeDoubleNegation(Code code, int i) {
+        Operation op = code.op(i);
+        if (op != Operation.negi && op != Operation.negf) {
+            return false;
+        }
+        int second = code.next(i);
+        if (second == code.size() || code.op(second) != op || code.isTarget(second)) {
+            return false;
+        }
+        code.remove(i);
+        code.remove(second);
+        return true;
+    }
+
+    /**
+     * 压栈之后马上弹出
+     */
+    private static boolean removePushPop(Code code, int i) {
+        if (!PURE_PUSH.contains(code.op(i))) {
+            return false;
+        }
+        int pop = code.next(i);
+        if (pop == code.size() || code.op(pop) != Operation.pop || code.isTarget(pop)) {
+            return false;
+        }
+        code.remove(i);
+        code.remove(pop);
+        return true;
+    }
+}
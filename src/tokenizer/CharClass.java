@@ -0,0 +1,76 @@
+package tokenizer;
+
+/**
+ * 词法分析用的字符分类
+ * <p>
+ * ASCII 字符查一张 128 项的表，其它字符才去调 Character 里的 Unicode 方法，
+ * 分类结果和直接调 Character.isDigit / isAlphabetic / isWhitespace 完全一样
+ */
+final class CharClass {
+    static final int DIGIT = 1;
+    static final int IDENT_START = 1 << 1;
+    static final int IDENT_PART = 1 << 2;
+    static final int WHITESPACE = 1 << 3;
+    static final int OPERATOR_START = 1 << 4;
+
+    private static final byte[] TABLE = new byte[128];
+
+    static {
+        for (char ch = 0; ch < 128; ch++) {
+            TABLE[ch] = (byte) unicode(ch);
+        }
+        for (char ch : "+-*/=!<>(){},:;".toCharArray()) {
+            TABLE[ch] |= OPERATOR_START;
+        }
+    }
+
+    private CharClass() {
+    }
+
+    private static int unicode(char ch) {
+        int flags = 0;
+        if (Character.isDigit(ch)) {
+            flags |= DIGIT | IDENT_PART;
+        }
+        if (Character.isAlphabetic(ch)) {
+            flags |= IDENT_START | IDENT_PART;
+        }
+        if (ch == '_') {
+            flags |= IDENT_PART;
+        }
+        if (Character.isWhitespace(ch)) {
+            flags |= WHITESPACE;
+        }
+        return flags;
+    }
+
+    /**
+     * 字符的所有分类，按位或在一起
+     */
+    static int of(char ch) {
+        return ch < 128 ? TABLE[ch] : unicode(ch);
+    }
+
+    static boolean isDigit(char ch) {
+        return (of(ch) & DIGIT) != 0;
+    }
+
+    /**
+     * 数字字符的值，只对 isDigit 为 true 的字符调用
+     */
+    static int digit(char ch) {
+        return ch < 128 ? ch - '0' : Character.digit(ch, 10);
+    }
+
+    static boolean isIdentStart(char ch) {
+        return (of(ch) & IDENT_START) != 0;
+    }
+
+    static boolean isIdentPart(char ch) {
+        return (of(ch) & IDENT_PART) != 0;
+    }
+
+    static boolean isWhitespace(char ch) {
+        return (of(ch) & WHITESPACE) != 0;
+    }
+}
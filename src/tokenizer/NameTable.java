@@ -0,0 +1,128 @@
+package tokenizer;
+
+import java.util.Arrays;
+
+/**
+ * 名字表：把标识符驻留成从 0 开始的连续整数 id
+ * <p>
+ * 字符串字面量不放在这里，它们按内容在 analyser.ConstantPool 里分配全局变量。
+ * <p>
+ * 词法分析时直接拿缓冲区里的原文算哈希、逐字比较，已经见过的名字不会再生成 String，
+ * 后面的语法分析和符号表都只用 id 查找。
+ */
+public class NameTable {
+    private static final int EMPTY = -1;
+
+    // 开放寻址的哈希表，存的是 id，EMPTY 表示空槽
+    private int[] slots = new int[64];
+    private int mask = 63;
+
+    // 按 id 存的名字和哈希值
+    private String[] names = new String[32];
+    private int[] hashes = new int[32];
+    private int size = 0;
+
+    public NameTable() {
+        Arrays.fill(slots, EMPTY);
+    }
+
+    /**
+     * 驻留源码里 [start, end) 这一段，只有第一次见到时才会复制成字符串
+     *
+     * @return 这个名字的 id
+     */
+    public int intern(StringIter source, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + source.charAt(i);
+        }
+        int len = end - start;
+        int slot = spread(hash) & mask;
+        while (true) {
+            int id = slots[slot];
+            if (id == EMPTY) {
+                return add(source.substring(start, end), hash, slot);
+            }
+            if (hashes[id] == hash && matches(names[id], source, start, len)) {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * 驻留一个已经生成好的字符串
+     *
+     * @return 这个名字的 id
+     */
+    public int intern(String name) {
+        int hash = name.hashCode();
+        int slot = spread(hash) & mask;
+        while (true) {
+            int id = slots[slot];
+            if (id == EMPTY) {
+                return add(name, hash, slot);
+            }
+            if (hashes[id] == hash && names[id].equals(name)) {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    public String name(int id) {
+        return names[id];
+    }
+
+    /**
+     * 已经驻留的名字个数，id 都小于这个数
+     */
+    public int size() {
+        return size;
+    }
+
+    private int add(String name, int hash, int slot) {
+        if (size == names.length) {
+            names = Arrays.copyOf(names, size * 2);
+            hashes = Arrays.copyOf(hashes, size * 2);
+        }
+        int id = size++;
+        names[id] = name;
+        hashes[id] = hash;
+        slots[slot] = id;
+        // 装载因子保持在 1/2 以下
+        if (size * 2 > slots.length) {
+            rehash();
+        }
+        return id;
+    }
+
+    private void rehash() {
+        slots = new int[slots.length * 2];
+        mask = slots.length - 1;
+        Arrays.fill(slots, EMPTY);
+        for (int id = 0; id < size; id++) {
+            int slot = spread(hashes[id]) & mask;
+            while (slots[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = id;
+        }
+    }
+
+    private static boolean matches(String name, StringIter source, int start, int len) {
+        if (name.length() != len) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (name.charAt(i) != source.charAt(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,106 @@
+package tokenizer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * 大文件的并行词法分析
+ * <p>
+ * 先顺序扫一遍，在不处于字符串、字符字面量和注释里面的换行后面找切分点，
+ * 这些位置一定落在两个 token 之间。然后每一段各用一个 Tokenizer 在 fork-join 线程池里分析，
+ * 最后按顺序拼起来。每段的位置都是整个文件里的绝对偏移，拼出来的结果和顺序分析完全一样。
+ */
+public class ParallelLexer {
+    /** 比这个小的文件直接顺序分析 */
+    public static final int MIN_PARALLEL = 1 << 20;
+    /** 每一段大约的字符数 */
+    public static final int CHUNK = 1 << 18;
+
+    // 扫描切分点时的状态
+    private static final int CODE = 0;
+    private static final int STRING = 1;
+    private static final int COMMENT = 2;
+
+    private ParallelLexer() {
+    }
+
+    /**
+     * 分析整个文件，小文件和流式读取时退回到顺序分析
+     */
+    public static TokenBuffer tokenize(StringIter source, NameTable names) {
+        if (source.isStreaming() || source.length() < MIN_PARALLEL) {
+            return TokenBuffer.tokenize(new Tokenizer(source), names);
+        }
+        return tokenize(source, names, CHUNK, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param chunk 每一段大约的字符数
+     */
+    public static TokenBuffer tokenize(StringIter source, NameTable names, int chunk, ForkJoinPool pool) {
+        int length = source.length();
+        List<int[]> chunks = split(source, length, chunk);
+        var tasks = new ArrayList<ForkJoinTask<TokenBuffer>>(chunks.size());
+        for (int[] c : chunks) {
+            var view = new StringIter(source, c[0], c[1]);
+            tasks.add(pool.submit(() -> TokenBuffer.tokenize(new Tokenizer(view), new NameTable())));
+        }
+        var result = new TokenBuffer(source, names);
+        for (int i = 0; i < tasks.size(); i++) {
+            if (!result.append(tasks.get(i).join(), i == tasks.size() - 1)) {
+                // 前面的段出错了，后面的结果用不上
+                for (int j = i + 1; j < tasks.size(); j++) {
+                    tasks.get(j).cancel(false);
+                }
+                break;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 找切分点，状态转移和 Tokenizer 里对应的几个分支保持一致
+     *
+     * @return 每一段的 {起始偏移, 结束偏移}
+     */
+    private static List<int[]> split(StringIter source, int length, int chunk) {
+        var chunks = new ArrayList<int[]>();
+        int from = 0;
+        int state = CODE;
+        int i = 0;
+        while (i < length) {
+            char ch = source.charAt(i++);
+            if (ch == '\n') {
+                if (state == COMMENT) {
+                    state = CODE;
+                }
+                if (state == CODE && i - from >= chunk && i < length) {
+                    chunks.add(new int[]{from, i});
+                    from = i;
+                }
+                continue;
+            }
+            if (state == STRING) {
+                if (ch == '\\') {
+                    // 转义的下一个字符原样跳过，可能是换行
+                    i++;
+                } else if (ch == '"') {
+                    state = CODE;
+                }
+            } else if (state == CODE) {
+                if (ch == '"') {
+                    state = STRING;
+                } else if (ch == '/' && i < length && source.charAt(i) == '/') {
+                    state = COMMENT;
+                } else if (ch == '\'') {
+                    // 字符字面量：一个字符或者一个转义，再加上结尾的引号
+                    i += i < length && source.charAt(i) == '\\' ? 3 : 2;
+                }
+            }
+        }
+        chunks.add(new int[]{from, length});
+        return chunks;
+    }
+}
@@ -1,9 +1,19 @@
 package tokenizer;
 
+import util.LineIndex;
 import util.Pos;
 
-import java.util.ArrayList;
-import java.util.Optional;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Scanner;
 
 
@@ -12,132 +22,429 @@ import java.util.Scanner;
  * 这是一个从 C++ 版本抄过来的字符迭代器
  */
 public class StringIter {
-    // 以行为基础的缓冲区
-    ArrayList<String> linesBuffer = new ArrayList<>();
+    /** 流式读取时默认的窗口大小，必须是 2 的幂 */
+    public static final int DEFAULT_WINDOW = 1 << 16;
+    private static final int CHUNK = 1 << 13;
 
-    Scanner scanner;
-    // 指向下一个要读取的字符
-    Pos ptrNext = new Pos(0, 0);
+    // 整个源文件的缓冲区，包括 \n
+    // 流式读取时是一个环形窗口，只保留最近读进来的一段
+    char[] buffer = new char[0];
+    // 已经读进缓冲区的字符总数（绝对偏移）
+    int length = 0;
 
-    Pos ptr = new Pos(0, 0);
+    Scanner scanner;
+    // 指向下一个要读取的字符（绝对偏移）
+    int offset = 0;
+    // 行首偏移表，行号和列号只在需要的时候从这里算出来
+    // 非流式读取时第一次用到才扫一遍整个缓冲区建表，流式读取时每读进一段就顺便加进去，
+    // 同时丢掉已经滑出窗口的行，表的大小和窗口一样有上限
+    LineIndex lines;
+    // 并行词法分析时每一段的迭代器和整个文件的迭代器共用一张表
+    StringIter owner;
 
     boolean initialized = false;
 
-    Optional<Character> peeked = Optional.empty();
+    // 以下只在流式读取时使用
+    boolean streaming = false;
+    int mask = 0;
+    // 窗口里最早的字符的绝对偏移
+    int windowStart = 0;
+    // 从这里开始的字符不会被挤出窗口，见 mark()，-1 表示没有
+    int marked = -1;
+    ReadableByteChannel channel;
+    CharsetDecoder decoder;
+    ByteBuffer bytes;
+    CharBuffer chars;
+    boolean inputEnded = false;
+    boolean drained = false;
 
     public StringIter(Scanner scanner) {
         this.scanner = scanner;
     }
 
-    // 从这里开始其实是一个基于行号的缓冲区的实现
-    // 为了简单起见，我们没有单独拿出一个类实现
+    /**
+     * 用 FileChannel.map 映射整个文件，一次解码到同一个缓冲区里
+     */
+    public StringIter(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("source file too large: " + path);
+            }
+            if (size > 0) {
+                decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+            }
+        }
+        this.initialized = true;
+    }
+
+    /**
+     * 已经读进内存的源码，调用方可以先拿这些字节做别的事（比如算缓存的键），保证分析的是同一份内容
+     */
+    public StringIter(byte[] source) throws IOException {
+        if (source.length > 0) {
+            decode(ByteBuffer.wrap(source));
+        }
+        this.initialized = true;
+    }
+
+    private void decode(ByteBuffer bytes) throws IOException {
+        CharBuffer chars = newDecoder().decode(bytes);
+        this.buffer = chars.array();
+        this.length = chars.remaining();
+    }
+
+    /**
+     * 流式读取，只在一个固定大小的环形窗口里保留源码，内存占用和文件大小无关
+     */
+    public StringIter(ReadableByteChannel channel) {
+        this(channel, DEFAULT_WINDOW);
+    }
+
+    /**
+     * @param window 窗口大小，会向上取到 2 的幂
+     */
+    public StringIter(ReadableByteChannel channel, int window) {
+        int capacity = Integer.highestOneBit(Math.max(window, 16) - 1) << 1;
+        this.buffer = new char[capacity];
+        this.mask = capacity - 1;
+        this.streaming = true;
+        this.channel = channel;
+        this.decoder = newDecoder();
+        this.bytes = ByteBuffer.allocate(CHUNK);
+        this.bytes.flip();
+        this.chars = CharBuffer.allocate(CHUNK);
+        this.lines = new LineIndex();
+        this.initialized = true;
+    }
+
+    /**
+     * 和 source 共用同一个缓冲区，只看 [from, to) 这一段
+     * <p>
+     * 并行词法分析时每一段各用一个，偏移还是整个文件里的绝对偏移
+     */
+    StringIter(StringIter source, int from, int to) {
+        this.buffer = source.buffer;
+        this.offset = from;
+        this.length = to;
+        this.owner = source;
+        this.initialized = true;
+    }
+
+    private static CharsetDecoder newDecoder() {
+        return StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    // 从这里开始其实是一个基于偏移的缓冲区的实现
     // 核心思想和 C 的文件输入输出类似，就是一个 buffer 加一个指针，有三个细节
     // 1.缓冲区包括 \n
     // 2.指针始终指向下一个要读取的 char
     // 3.行号和列号从 0 开始
 
-    // 一次读入全部内容，并且替换所有换行为 \n
-    // 这样其实是不合理的，这里只是简单起见这么实现
+    // 旧的 Scanner 接口：一次读入全部内容，并且替换所有换行为 \n
+    // 用文件或者 channel 构造的迭代器在构造时就已经准备好了
     public void readAll() {
         if (initialized) {
             return;
         }
+        var sb = new StringBuilder();
         while (scanner.hasNext()) {
-            linesBuffer.add(scanner.nextLine() + '\n');
+            sb.append(scanner.nextLine()).append('\n');
         }
-        // todo:check read \n?
+        buffer = new char[sb.length()];
+        sb.getChars(0, sb.length(), buffer, 0);
+        length = buffer.length;
         initialized = true;
     }
 
     // 一个简单的总结
-    // | 0 | 1 | 2 | 3 | 4 | 5 | 6 | 7 | 8 | 9 | 偏移
+    // | 0 | 1 | 2 | 3 | 4 | 5 | 6 | 7 | 8 | 9 | 行内偏移
     // | = | = | = | = | = | = | = | = | = | = |
-    // | h | a | 1 | 9 | 2 | 6 | 0 | 8 | 1 | \n |（缓冲区第0行）
-    // | 7 | 1 | 1 | 4 | 5 | 1 | 4 | （缓冲区第1行）
-    // 这里假设指针指向第一行的 \n，那么有
+    // | h | a | 1 | 9 | 2 | 6 | 0 | 8 | 1 | \n |（第0行，缓冲区偏移 0~9）
+    // | 7 | 1 | 1 | 4 | 5 | 1 | 4 | （第1行，缓冲区偏移 10~16）
+    // 这里假设指针指向第一行的 \n，也就是 offset = 9，那么有
     // nextPos() = (1, 0)
     // currentPos() = (0, 9)
     // previousPos() = (0, 8)
     // nextChar() = '\n' 并且指针移动到 (1, 0)
     // unreadLast() 指针移动到 (0, 8)
+    // 这几个 Pos 都是现算的，平时只需要移动 offset
     /**
      * 获取下一个字符的位置
      */
     public Pos nextPos() {
-        if (ptr.row >= linesBuffer.size()) {
+        if (isEOF()) {
             throw new Error("advance after EOF");
         }
-        if (ptr.col == linesBuffer.get(ptr.row).length() - 1) {
-            return new Pos(ptr.row + 1, 0);
-        }
-        return new Pos(ptr.row, ptr.col + 1);
+        return lines().pos(offset + 1);
     }
 
     /**
      * 获取当前字符的位置
      */
     public Pos currentPos() {
-        return ptr;
+        return lines().pos(offset);
     }
 
     /**
      * 获取上一个字符的位置
      */
     public Pos previousPos() {
-        if (ptr.row == 0 && ptr.col == 0) {
+        if (offset == 0) {
             throw new Error("previous position from beginning");
         }
-        if (ptr.col == 0) {
-            return new Pos(ptr.row - 1, linesBuffer.get(ptr.row - 1).length() - 1);
+        return lines().pos(offset - 1);
+    }
+
+    /**
+     * 行首偏移表，用来把偏移换算成行号和列号
+     * <p>
+     * 流式读取时表里只有还在窗口里的行，只能换算窗口里的偏移
+     */
+    public LineIndex lines() {
+        if (owner != null) {
+            return owner.lines();
+        }
+        synchronized (this) {
+            if (lines == null) {
+                readAll();
+                lines = LineIndex.of(buffer, length);
+            }
+            return lines;
         }
-        return new Pos(ptr.row, ptr.col - 1);
     }
 
     /**
      * 将指针指向下一个字符，并返回当前字符
      */
     public char nextChar() {
-        if (this.peeked.isPresent()) {
-            char ch = this.peeked.get();
-            this.peeked = Optional.empty();
-            this.ptr = ptrNext;
-            return ch;
-        } else {
-            char ch = this.getNextChar();
-            this.ptr = ptrNext;
-            return ch;
+        if (offset >= length && !fill()) {
+            return 0;
         }
+        return charAt(offset++);
     }
 
-    private char getNextChar() {
-        if (isEOF()) {
+    /**
+     * 查看下一个字符，但不移动指针
+     */
+    public char peekChar() {
+        if (offset >= length && !fill()) {
             return 0;
         }
-        char result = linesBuffer.get(ptrNext.row).charAt(ptrNext.col);
-        ptrNext = nextPos();
-        return result;
+        return charAt(offset);
     }
 
     /**
-     * 查看下一个字符，但不移动指针
+     * 查看下一个字符之后的第 ahead 个字符，peekChar(0) 就是 peekChar()，超出文件末尾返回 0
      */
-    public char peekChar() {
-        if (peeked.isPresent()) {
-            return peeked.get();
-        } else {
-            char ch = getNextChar();
-            this.peeked = Optional.of(ch);
-            return ch;
+    public char peekChar(int ahead) {
+        while (offset + ahead >= length) {
+            if (!fill()) {
+                return 0;
+            }
         }
+        return charAt(offset + ahead);
     }
 
-    public Boolean isEOF() {
-        return ptr.row >= linesBuffer.size();
+    public boolean isEOF() {
+        return offset >= length && !fill();
     }
 
     // Note: Is it evil to unread a buffer?
+    // 流式读取时只能回退到窗口里还保留着的字符
     public void unreadLast() {
-        ptr = previousPos();
+        if (offset == 0) {
+            throw new Error("previous position from beginning");
+        }
+        if (streaming && offset <= windowStart) {
+            throw new Error("unread past the streaming window at offset " + offset);
+        }
+        offset--;
     }
 
+    /**
+     * 跳过连续的空白字符（Character.isWhitespace），返回时指针指向第一个非空白字符或者 EOF
+     * <p>
+     * 直接在缓冲区上扫，不用每个字符调一次 nextChar()
+     */
+    public void skipWhitespace() {
+        do {
+            int m = streaming ? mask : -1;
+            int i = offset;
+            while (i < length && CharClass.isWhitespace(buffer[i & m])) {
+                i++;
+            }
+            offset = i;
+            if (i < length) {
+                return;
+            }
+        } while (fill());
+    }
+
+    /**
+     * 跳过这一行剩下的字符，包括行尾的 \n，注释用
+     */
+    public void skipLine() {
+        do {
+            int m = streaming ? mask : -1;
+            int i = offset;
+            while (i < length && buffer[i & m] != '\n') {
+                i++;
+            }
+            if (i < length) {
+                offset = i + 1;
+                return;
+            }
+            offset = i;
+        } while (fill());
+    }
+
+    /**
+     * 流式读取时窗口会往前滑，缓冲区里的切片不能留到以后再用
+     */
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    /**
+     * 已经读进缓冲区的字符总数，非流式读取时就是整个源文件的长度
+     */
+    public int length() {
+        readAll();
+        return length;
+    }
+
+    /**
+     * 下一个要读取的字符的绝对偏移
+     */
+    public int offset() {
+        return offset;
+    }
+
+    /**
+     * 记下当前偏移，之后读到的字符在 clearMark() 之前都会留在缓冲区里，
+     * 这样词法分析可以直接在缓冲区上取出一个 token 的原文
+     *
+     * @return 当前偏移
+     */
+    public int mark() {
+        marked = offset;
+        return offset;
+    }
+
+    public void clearMark() {
+        marked = -1;
+    }
+
+    /**
+     * 取绝对偏移处的字符，流式读取时只能取窗口里的字符
+     */
+    public char charAt(int index) {
+        if (streaming) {
+            checkWindow(index, index + 1);
+            return buffer[index & mask];
+        }
+        return buffer[index];
+    }
+
+    /**
+     * 把 [start, end) 的原文复制成字符串
+     */
+    public String substring(int start, int end) {
+        if (!streaming) {
+            return new String(buffer, start, end - start);
+        }
+        checkWindow(start, end);
+        int from = start & mask;
+        int len = end - start;
+        int first = Math.min(len, buffer.length - from);
+        var sb = new StringBuilder(len);
+        sb.append(buffer, from, first);
+        sb.append(buffer, 0, len - first);
+        return sb.toString();
+    }
+
+    /**
+     * 流式读取时 [start, end) 必须还在窗口里，环形缓冲区里更早的位置已经被新读进来的字符覆盖了
+     */
+    private void checkWindow(int start, int end) {
+        if (start < windowStart || end > length) {
+            throw new Error("offset " + start + " is outside the streaming window [" + windowStart + ", " + length + ")");
+        }
+    }
+
+    /**
+     * 从 channel 里再读一段到窗口里，读不到东西（或者不是流式读取）时返回 false
+     * <p>
+     * 窗口里至少保留上一个字符，unreadLast() 要用，还有 mark() 之后读到的所有字符
+     * <p>
+     * 新读进来的字符顺便扫一遍，把行首加进行首偏移表，滑出窗口的行从表里去掉
+     */
+    private boolean fill() {
+        if (!streaming || drained) {
+            return false;
+        }
+        try {
+            while (true) {
+                int keepFrom = Math.max(offset - 1, 0);
+                if (marked >= 0 && marked < keepFrom) {
+                    keepFrom = marked;
+                }
+                int free = buffer.length - (length - keepFrom);
+                if (free < 2) {
+                    // 被 mark 住的 token 比窗口还长，只能把窗口放大
+                    grow();
+                    continue;
+                }
+                chars.clear();
+                chars.limit(Math.min(chars.capacity(), free));
+                var result = decoder.decode(bytes, chars, inputEnded);
+                if (inputEnded && result.isUnderflow()) {
+                    decoder.flush(chars);
+                    drained = true;
+                }
+                chars.flip();
+                int produced = chars.remaining();
+                if (produced > 0) {
+                    int start = length & mask;
+                    int first = Math.min(produced, buffer.length - start);
+                    for (int i = 0; i < produced; i++) {
+                        if (chars.get(i) == '\n') {
+                            lines.addLine(length + i + 1);
+                        }
+                    }
+                    chars.get(buffer, start, first);
+                    chars.get(buffer, 0, produced - first);
+                    length += produced;
+                    windowStart = Math.max(windowStart, length - buffer.length);
+                    lines.discardBefore(windowStart);
+                    return true;
+                }
+                if (inputEnded) {
+                    drained = true;
+                    return false;
+                }
+                bytes.compact();
+                int n = channel.read(bytes);
+                bytes.flip();
+                if (n < 0) {
+                    inputEnded = true;
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void grow() {
+        char[] bigger = new char[buffer.length * 2];
+        int biggerMask = bigger.length - 1;
+        for (int i = windowStart; i < length; i++) {
+            bigger[i & biggerMask] = buffer[i & mask];
+        }
+        buffer = bigger;
+        mask = biggerMask;
+    }
 }
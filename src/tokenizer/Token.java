@@ -1,4 +1,5 @@
 package tokenizer;
+import util.LineIndex;
 import util.Pos;
 
 import java.util.Objects;
@@ -6,14 +7,48 @@ import java.util.Objects;
 public class Token {
     private TokenType tokenType;
     private Object value;
-    private Pos startPos;
-    private Pos endPos;
-
-    public Token(TokenType tokenType, Object value, Pos startPos, Pos endPos) {
+    // 位置是源码里的偏移，只有报错和输出时才用 source 的行首偏移表换算成 Pos
+    private int startPos;
+    private int endPos;
+    private Pos start;
+    private Pos end;
+    private StringIter source;
+    // 标识符和字符串字面量的原文在源码缓冲区里的切片，value 在第一次用到时才生成
+    private boolean slice;
+    private int offset;
+    private int length;
+
+    /**
+     * @param source 用来把偏移换算成行号列号
+     */
+    public Token(TokenType tokenType, Object value, int startPos, int endPos, StringIter source) {
         this.tokenType = tokenType;
         this.value = value;
         this.startPos = startPos;
         this.endPos = endPos;
+        this.source = source;
+    }
+
+    /**
+     * 值是源码缓冲区 [offset, offset + length) 的一段，需要时才变成字符串
+     */
+    public Token(TokenType tokenType, StringIter source, int offset, int length, int startPos, int endPos) {
+        this.tokenType = tokenType;
+        this.source = source;
+        this.slice = true;
+        this.offset = offset;
+        this.length = length;
+        this.startPos = startPos;
+        this.endPos = endPos;
+    }
+
+    public Token(TokenType tokenType, Object value, Pos startPos, Pos endPos) {
+        this.tokenType = tokenType;
+        this.value = value;
+        this.start = startPos;
+        this.end = endPos;
+        this.startPos = LineIndex.NONE;
+        this.endPos = LineIndex.NONE;
     }
 
     public Token(Token token) {
@@ -21,6 +56,12 @@ public class Token {
         this.value = token.value;
         this.startPos = token.startPos;
         this.endPos = token.endPos;
+        this.start = token.start;
+        this.end = token.end;
+        this.source = token.source;
+        this.slice = token.slice;
+        this.offset = token.offset;
+        this.length = token.length;
     }
 
     @Override
@@ -30,16 +71,17 @@ public class Token {
         if (o == null || getClass() != o.getClass())
             return false;
         Token token = (Token) o;
-        return tokenType == token.tokenType && Objects.equals(value, token.value)
-                && Objects.equals(startPos, token.startPos) && Objects.equals(endPos, token.endPos);
+        return tokenType == token.tokenType && Objects.equals(getValue(), token.getValue())
+                && startPos == token.startPos && endPos == token.endPos;
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(tokenType, value, startPos, endPos);
+        return Objects.hash(tokenType, getValue(), startPos, endPos);
     }
 
     public String getValueString() {
+        Object value = getValue();
         if (value instanceof Integer || value instanceof String || value instanceof Character) {
             return value.toString();
         }
@@ -55,41 +97,84 @@ public class Token {
     }
 
     public Object getValue() {
+        if (value == null && slice) {
+            if (tokenType == TokenType.STRING_LITERAL) {
+                value = Tokenizer.unescape(source, offset, offset + length);
+            } else {
+                value = source.substring(offset, offset + length);
+            }
+        }
         return value;
     }
 
     public void setValue(Object value) {
         this.value = value;
+        this.slice = false;
+    }
+
+    /**
+     * 原文在源码缓冲区里的偏移，值不是切片时为 0
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * 原文的长度，值不是切片时为 0
+     */
+    public int getLength() {
+        return length;
     }
 
     public Pos getStartPos() {
-        return startPos;
+        if (start == null && source != null) {
+            start = source.lines().pos(startPos);
+        }
+        return start;
     }
 
     public void setStartPos(Pos startPos) {
-        this.startPos = startPos;
+        this.start = startPos;
     }
 
     public Pos getEndPos() {
-        return endPos;
+        if (end == null && source != null) {
+            end = source.lines().pos(endPos);
+        }
+        return end;
     }
 
     public void setEndPos(Pos endPos) {
-        this.endPos = endPos;
+        this.end = endPos;
+    }
+
+    /**
+     * 起始位置在源码里的偏移，不创建 Pos
+     */
+    public int getStart() {
+        return startPos;
+    }
+
+    /**
+     * 结束位置在源码里的偏移，不创建 Pos
+     */
+    public int getEnd() {
+        return endPos;
     }
 
     @Override
     public String toString() {
         var sb = new StringBuilder();
-        sb.append("Line: ").append(this.startPos.row).append(' ');
-        sb.append("Column: ").append(this.startPos.col).append(' ');
+        Pos pos = getStartPos();
+        sb.append("Line: ").append(pos.row).append(' ');
+        sb.append("Column: ").append(pos.col).append(' ');
         sb.append("Type: ").append(this.tokenType).append(' ');
-        sb.append("Value: ").append(this.value);
+        sb.append("Value: ").append(getValue());
         return sb.toString();
     }
 
     public String toStringAlt() {
-        return new StringBuilder().append("Token(").append(this.tokenType).append(", value: ").append(value)
-                .append("at: ").append(this.startPos).toString();
+        return new StringBuilder().append("Token(").append(this.tokenType).append(", value: ").append(getValue())
+                .append("at: ").append(getStartPos()).toString();
     }
 }
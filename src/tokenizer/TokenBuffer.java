@@ -0,0 +1,424 @@
+package tokenizer;
+
+import error.TokenizeError;
+import util.LineIndex;
+import util.Pos;
+
+import java.util.Arrays;
+
+/**
+ * 一次性读完的 token 流，按列存在几个平行的基本类型数组里
+ * <p>
+ * 第 i 个 token 的类型是 types[i]，源码范围是 [start[i], end[i])，
+ * values[i] 是它的值在 numbers 或 strings 里的下标，标识符则是它在 NameTable 里的 id。
+ * 语法分析器只拿下标来回传，只有报错的时候才会用 token(i) 拼出一个 Token 对象。
+ */
+public class TokenBuffer {
+    private static final TokenType[] TYPES = TokenType.values();
+    private static final int NO_VALUE = -1;
+    private static final byte IDENT = (byte) TokenType.IDENT.ordinal();
+    // 关键字和运算符的原文是固定的，不用回到源码里取
+    private static final String[] FIXED_TEXT = new String[TYPES.length];
+
+    static {
+        Tokenizer.keywordmap.forEach((text, type) -> FIXED_TEXT[type.ordinal()] = text);
+        FIXED_TEXT[TokenType.PLUS.ordinal()] = "+";
+        FIXED_TEXT[TokenType.MINUS.ordinal()] = "-";
+        FIXED_TEXT[TokenType.MUL.ordinal()] = "*";
+        FIXED_TEXT[TokenType.DIV.ordinal()] = "/";
+        FIXED_TEXT[TokenType.ASSIGN.ordinal()] = "=";
+        FIXED_TEXT[TokenType.EQ.ordinal()] = "==";
+        FIXED_TEXT[TokenType.NEQ.ordinal()] = "!=";
+        FIXED_TEXT[TokenType.LT.ordinal()] = "<";
+        FIXED_TEXT[TokenType.GT.ordinal()] = ">";
+        FIXED_TEXT[TokenType.LE.ordinal()] = "<=";
+        FIXED_TEXT[TokenType.GE.ordinal()] = ">=";
+        FIXED_TEXT[TokenType.L_PAREN.ordinal()] = "(";
+        FIXED_TEXT[TokenType.R_PAREN.ordinal()] = ")";
+        FIXED_TEXT[TokenType.L_BRACE.ordinal()] = "{";
+        FIXED_TEXT[TokenType.R_BRACE.ordinal()] = "}";
+        FIXED_TEXT[TokenType.ARROW.ordinal()] = "->";
+        FIXED_TEXT[TokenType.COMMA.ordinal()] = ",";
+        FIXED_TEXT[TokenType.COLON.ordinal()] = ":";
+        FIXED_TEXT[TokenType.SEMICOLON.ordinal()] = ";";
+        FIXED_TEXT[TokenType.EOF.ordinal()] = "";
+    }
+
+    private final StringIter source;
+    private final NameTable names;
+
+    private byte[] types = new byte[64];
+    private int[] start = new int[64];
+    private int[] end = new int[64];
+    private int[] values = new int[64];
+    // 报告的起始位置（偏移），结束位置就是 end[i]
+    private int[] startPos = new int[64];
+    private int size = 0;
+
+    // 数字字面量的值
+    private long[] numbers = new long[16];
+    private int numberCount = 0;
+    // 已经生成过的字符串字面量的值
+    private String[] strings = new String[16];
+    private int stringCount = 0;
+
+    // 分析到一半遇到的词法错误，等语法分析器真的读到这里才抛出
+    private TokenizeError error = null;
+    // 词法分析时遇到的其它异常（比如数字字面量解析失败），也一样留到读到这里时再抛
+    private RuntimeException failure = null;
+
+    // 流式读取时源码的行首偏移表只留着窗口里的行，token 所在的行在读进来的时候就记到这里，见 lines()
+    private LineIndex lines = null;
+
+    /** 指向下一个要读取的 token */
+    private int cursor = 0;
+
+    TokenBuffer(StringIter source, NameTable names) {
+        this.source = source;
+        this.names = names;
+        if (source.isStreaming()) {
+            this.lines = LineIndex.sparse();
+        }
+    }
+
+    private TokenBuffer(TokenBuffer other, int cursor) {
+        this.source = other.source;
+        this.names = other.names;
+        this.types = other.types;
+        this.start = other.start;
+        this.end = other.end;
+        this.values = other.values;
+        this.startPos = other.startPos;
+        this.size = other.size;
+        this.numbers = other.numbers;
+        this.numberCount = other.numberCount;
+        this.strings = other.strings;
+        this.stringCount = other.stringCount;
+        this.error = other.error;
+        this.failure = other.failure;
+        this.lines = other.lines;
+        this.cursor = cursor;
+    }
+
+    /**
+     * 和这个缓冲区共用同一份 token、有自己的读取位置的副本，从第 from 个 token 开始读
+     * <p>
+     * 给几个线程同时分析不同的函数用。副本只能读，要用到的字符串字面量必须先在原来的缓冲区里
+     * 用 text / symbol 生成好，之后两边都不能再往名字表里加东西
+     */
+    public TokenBuffer fork(int from) {
+        return new TokenBuffer(this, from);
+    }
+
+    /**
+     * 把 tokenizer 剩下的 token 全部读进来，最后一个是 EOF
+     * <p>
+     * 遇到词法错误时就停在那里，错误留到 peek 到那个位置时再抛，这样报错的先后顺序和边读边分析时一样
+     */
+    public static TokenBuffer tokenize(Tokenizer tokenizer) {
+        return tokenize(tokenizer, new NameTable());
+    }
+
+    /**
+     * 同上，标识符驻留到给定的名字表里
+     */
+    public static TokenBuffer tokenize(Tokenizer tokenizer, NameTable names) {
+        var buffer = new TokenBuffer(tokenizer.getIter(), names);
+        StringIter it = tokenizer.getIter();
+        while (true) {
+            TokenType type;
+            try {
+                type = tokenizer.lex();
+            } catch (TokenizeError e) {
+                buffer.error = e;
+                it.clearMark();
+                break;
+            } catch (RuntimeException e) {
+                buffer.failure = e;
+                it.clearMark();
+                break;
+            }
+            buffer.add(tokenizer);
+            it.clearMark();
+            if (type == TokenType.EOF) {
+                break;
+            }
+        }
+        return buffer;
+    }
+
+    private void add(Tokenizer t) {
+        ensureCapacity(size + 1);
+        TokenType type = t.curType;
+        types[size] = (byte) type.ordinal();
+        start[size] = t.curStart;
+        end[size] = t.curEnd;
+        startPos[size] = t.curStartPos;
+        if (type == TokenType.UINT_LITERAL || type == TokenType.DOUBLE_LITERAL) {
+            values[size] = addNumber(t.curNumber);
+        } else if (type == TokenType.IDENT) {
+            values[size] = names.intern(source, t.curStart, t.curEnd);
+        } else if (source.isStreaming() && type == TokenType.STRING_LITERAL) {
+            // 流式读取时原文马上就会被挤出窗口，只能现在生成字符串
+            values[size] = addString(materialize(type, t.curStart, t.curEnd));
+        } else {
+            values[size] = NO_VALUE;
+        }
+        if (lines != null) {
+            keepLine(t.curStartPos);
+            keepLine(t.curEnd);
+        }
+        size++;
+    }
+
+    /**
+     * 把单独分析的一段源码的 token 接到后面，这一段的名字 id 重新驻留到自己的名字表里
+     * <p>
+     * 除了最后一段，每段末尾的 EOF 都要去掉；某一段有词法错误时，错误留给这里，后面的段不再接
+     *
+     * @param last 是不是最后一段
+     * @return 能不能继续接下一段
+     */
+    boolean append(TokenBuffer chunk, boolean last) {
+        int count = chunk.size;
+        if (chunk.hasError()) {
+            last = true;
+        } else if (!last && count > 0) {
+            count--;
+        }
+        ensureCapacity(size + count);
+        int[] remap = new int[chunk.names.size()];
+        for (int id = 0; id < remap.length; id++) {
+            remap[id] = names.intern(chunk.names.name(id));
+        }
+        int numberBase = numberCount;
+        for (int i = 0; i < chunk.numberCount; i++) {
+            addNumber(chunk.numbers[i]);
+        }
+        int stringBase = stringCount;
+        for (int i = 0; i < chunk.stringCount; i++) {
+            addString(chunk.strings[i]);
+        }
+        System.arraycopy(chunk.types, 0, types, size, count);
+        System.arraycopy(chunk.start, 0, start, size, count);
+        System.arraycopy(chunk.end, 0, end, size, count);
+        System.arraycopy(chunk.startPos, 0, startPos, size, count);
+        for (int i = 0; i < count; i++) {
+            TokenType type = TYPES[chunk.types[i]];
+            int value = chunk.values[i];
+            if (type == TokenType.IDENT) {
+                value = remap[value];
+            } else if (type == TokenType.UINT_LITERAL || type == TokenType.DOUBLE_LITERAL) {
+                value += numberBase;
+            } else if (value != NO_VALUE) {
+                value += stringBase;
+            }
+            values[size + i] = value;
+        }
+        size += count;
+        error = chunk.error;
+        failure = chunk.failure;
+        return !last;
+    }
+
+    private void ensureCapacity(int needed) {
+        if (needed <= types.length) {
+            return;
+        }
+        int capacity = Math.max(needed, types.length * 2);
+        types = Arrays.copyOf(types, capacity);
+        start = Arrays.copyOf(start, capacity);
+        end = Arrays.copyOf(end, capacity);
+        values = Arrays.copyOf(values, capacity);
+        startPos = Arrays.copyOf(startPos, capacity);
+    }
+
+    private int addNumber(long number) {
+        if (numberCount == numbers.length) {
+            numbers = Arrays.copyOf(numbers, numberCount * 2);
+        }
+        numbers[numberCount] = number;
+        return numberCount++;
+    }
+
+    private int addString(String string) {
+        if (stringCount == strings.length) {
+            strings = Arrays.copyOf(strings, stringCount * 2);
+        }
+        strings[stringCount] = string;
+        return stringCount++;
+    }
+
+    private String materialize(TokenType type, int from, int to) {
+        if (type == TokenType.STRING_LITERAL) {
+            return Tokenizer.unescape(source, from + 1, to - 1);
+        }
+        return source.substring(from, to);
+    }
+
+    /**
+     * 向前看 k 个 token 的类型，peek(0) 是下一个要读取的 token
+     *
+     * @throws TokenizeError 如果看到了词法错误的位置
+     */
+    public TokenType peek(int k) throws TokenizeError {
+        int i = cursor + k;
+        if (i >= size) {
+            if (error != null) {
+                throw error;
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return TokenType.EOF;
+        }
+        return TYPES[types[i]];
+    }
+
+    public TokenType peek() throws TokenizeError {
+        return peek(0);
+    }
+
+    /**
+     * 前进一个 token
+     *
+     * @return 刚读过的 token 的下标
+     */
+    public int advance() throws TokenizeError {
+        peek(0);
+        if (cursor >= size) {
+            // 已经在 EOF 上了，一直停在最后一个 token
+            return size - 1;
+        }
+        return cursor++;
+    }
+
+    /**
+     * 下一个要读取的 token 的下标
+     */
+    public int index() {
+        return cursor;
+    }
+
+    /**
+     * 是不是在读完之前就遇到了错误，这时最后一个 token 不是 EOF
+     */
+    public boolean hasError() {
+        return error != null || failure != null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public TokenType type(int i) {
+        return TYPES[types[i]];
+    }
+
+    public int start(int i) {
+        return start[i];
+    }
+
+    public int end(int i) {
+        return end[i];
+    }
+
+    /**
+     * 数字字面量的值，浮点数是 doubleToLongBits 之后的值
+     */
+    public long number(int i) {
+        return numbers[values[i]];
+    }
+
+    /**
+     * 标识符的名字或者字符串字面量的值，字符串字面量第一次用到时才生成
+     */
+    public String text(int i) {
+        if (types[i] == IDENT) {
+            return names.name(values[i]);
+        }
+        if (values[i] == NO_VALUE) {
+            values[i] = addString(materialize(type(i), start[i], end[i]));
+        }
+        return strings[values[i]];
+    }
+
+    /**
+     * 标识符在名字表里的 id，只对标识符有意义；字符串字面量不是名字，按内容放进常量池
+     */
+    public int symbol(int i) {
+        if (types[i] != IDENT) {
+            throw new IllegalArgumentException("token " + i + " is " + type(i) + ", not an identifier");
+        }
+        return values[i];
+    }
+
+    public NameTable names() {
+        return names;
+    }
+
+    /**
+     * 起始位置在源码里的偏移，要行号列号时用 lines() 换算
+     */
+    public int startPos(int i) {
+        return startPos[i];
+    }
+
+    /**
+     * 结束位置在源码里的偏移
+     */
+    public int endPos(int i) {
+        return end[i];
+    }
+
+    public Pos getStartPos(int i) {
+        return lines().pos(startPos[i]);
+    }
+
+    /**
+     * 源码的行首偏移表
+     */
+    public LineIndex lines() {
+        return lines != null ? lines : source.lines();
+    }
+
+    /**
+     * 流式读取时把 offset 所在的行记下来，这时它还在窗口里
+     */
+    private void keepLine(int offset) {
+        LineIndex window = source.lines();
+        int row = window.rowOf(offset);
+        if (row >= lines.lineCount()) {
+            lines.addLine(row, window.lineStart(row));
+        }
+    }
+
+    /**
+     * 关键字和运算符的原文，其它类型返回 null
+     */
+    static String fixedText(TokenType type) {
+        return FIXED_TEXT[type.ordinal()];
+    }
+
+    /**
+     * 拼出第 i 个 token 的对象，报错时用
+     */
+    public Token token(int i) {
+        TokenType type = type(i);
+        Object value;
+        if (type == TokenType.UINT_LITERAL || type == TokenType.DOUBLE_LITERAL) {
+            value = number(i);
+        } else if (type == TokenType.IDENT || type == TokenType.STRING_LITERAL) {
+            value = text(i);
+        } else {
+            value = FIXED_TEXT[type.ordinal()];
+        }
+        var token = new Token(type, value, startPos[i], end[i], source);
+        if (lines != null) {
+            // 源码那边已经换算不了了
+            token.setStartPos(lines.pos(startPos[i]));
+            token.setEndPos(lines.pos(end[i]));
+        }
+        return token;
+    }
+}
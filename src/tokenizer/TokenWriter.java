@@ -0,0 +1,214 @@
+package tokenizer;
+
+import util.LineIndex;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * --tokenize 的输出
+ * <p>
+ * 文本格式和 Token.toString() 一样，每个 token 一行，先格式化到一个复用的 StringBuilder 里，
+ * 攒够一大块再编码写到 channel。写到标准输出时 channel 包着的还是 PrintStream，
+ * 只是它的锁每一块才拿一次，而不是每个 token 一次。
+ * <p>
+ * channel 是调用者的，TokenWriter 只往里写，不关闭它，写完调 flush。
+ * <p>
+ * 二进制格式给工具用：开头是 magic "C0TK" 和版本号（int），之后每个 token 是
+ * <pre>
+ * u8 类型（TokenType.ordinal()）
+ * i32 起始行 i32 起始列 i32 结束行 i32 结束列
+ * 数字字面量：i64 值（浮点数是 doubleToLongBits）
+ * 标识符和字符串字面量：i32 UTF-8 字节数，后面跟着这些字节
+ * </pre>
+ * 整数都是大端序。正常结束时最后一个 token 是 EOF，没有 EOF 说明分析到一半出错了。
+ */
+public class TokenWriter {
+    public static final int MAGIC = 0x4330544B;
+    public static final int VERSION = 1;
+    private static final int BLOCK = 1 << 16;
+    private static final String NEWLINE = System.lineSeparator();
+
+    private final WritableByteChannel out;
+    private final boolean binary;
+    private final LineIndex lines;
+    // token 是按顺序写的，行号从上一次的位置往后找就行，不用每次二分查找
+    private int row = 0;
+    private final ByteBuffer bytes = ByteBuffer.allocate(BLOCK);
+    // 以下只在文本格式时使用
+    private final StringBuilder text = new StringBuilder(BLOCK);
+    private final CharsetEncoder encoder;
+
+    private TokenWriter(WritableByteChannel out, boolean binary, Charset charset, LineIndex lines) {
+        this.out = out;
+        this.binary = binary;
+        this.lines = lines;
+        this.encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * 文本格式，和逐行 println(token) 的输出一样
+     */
+    public static TokenWriter text(WritableByteChannel out, Charset charset, LineIndex lines) {
+        return new TokenWriter(out, false, charset, lines);
+    }
+
+    /**
+     * 二进制格式，见类的说明
+     */
+    public static TokenWriter binary(WritableByteChannel out, LineIndex lines) {
+        var writer = new TokenWriter(out, true, StandardCharsets.UTF_8, lines);
+        writer.bytes.putInt(MAGIC).putInt(VERSION);
+        return writer;
+    }
+
+    /**
+     * 写出 TokenBuffer 里的第 i 个 token，不用拼出 Token 对象
+     */
+    public void write(TokenBuffer tokens, int i) throws IOException {
+        TokenType type = tokens.type(i);
+        int start = tokens.startPos(i);
+        if (binary) {
+            writeHeader(type, start, tokens.endPos(i));
+            if (type == TokenType.UINT_LITERAL || type == TokenType.DOUBLE_LITERAL) {
+                writeLong(tokens.number(i));
+            } else if (type == TokenType.IDENT || type == TokenType.STRING_LITERAL) {
+                writeString(tokens.text(i));
+            }
+            return;
+        }
+        appendPrefix(type, start);
+        if (type == TokenType.UINT_LITERAL || type == TokenType.DOUBLE_LITERAL) {
+            text.append(tokens.number(i));
+        } else if (type == TokenType.IDENT || type == TokenType.STRING_LITERAL) {
+            text.append(tokens.text(i));
+        } else {
+            text.append(TokenBuffer.fixedText(type));
+        }
+        endLine();
+    }
+
+    /**
+     * 写出一个 Token，流式读取时用
+     */
+    public void write(Token token) throws IOException {
+        TokenType type = token.getTokenType();
+        Object value = token.getValue();
+        if (binary) {
+            writeHeader(type, token.getStart(), token.getEnd());
+            if (type == TokenType.UINT_LITERAL || type == TokenType.DOUBLE_LITERAL) {
+                writeLong((Long) value);
+            } else if (type == TokenType.IDENT || type == TokenType.STRING_LITERAL) {
+                writeString((String) value);
+            }
+            return;
+        }
+        appendPrefix(type, token.getStart());
+        text.append(value);
+        endLine();
+    }
+
+    private void appendPrefix(TokenType type, int start) {
+        int row = rowOf(start);
+        text.append("Line: ").append(row).append(' ');
+        text.append("Column: ").append(start - lines.lineStart(row)).append(' ');
+        text.append("Type: ").append(type).append(' ');
+        text.append("Value: ");
+    }
+
+    private void endLine() throws IOException {
+        text.append(NEWLINE);
+        if (text.length() >= BLOCK) {
+            flushText();
+        }
+    }
+
+    private void flushText() throws IOException {
+        var chars = CharBuffer.wrap(text);
+        while (true) {
+            CoderResult result = encoder.encode(chars, bytes, true);
+            if (result.isOverflow()) {
+                drain();
+            } else {
+                break;
+            }
+        }
+        encoder.reset();
+        text.setLength(0);
+    }
+
+    private void writeHeader(TokenType type, int start, int end) throws IOException {
+        reserve(17);
+        bytes.put((byte) type.ordinal());
+        int startRow = rowOf(start);
+        bytes.putInt(startRow).putInt(start - lines.lineStart(startRow));
+        int endRow = rowOf(end);
+        bytes.putInt(endRow).putInt(end - lines.lineStart(endRow));
+    }
+
+    /**
+     * 偏移所在的行号，偏移比上一次小（或者流式读取时上一次的行已经滑出窗口）时才退回到二分查找
+     */
+    private int rowOf(int offset) {
+        if (row < lines.firstRow() || offset < lines.lineStart(row)) {
+            row = lines.rowOf(offset);
+        }
+        while (row + 1 < lines.lineCount() && lines.lineStart(row + 1) <= offset) {
+            row++;
+        }
+        return row;
+    }
+
+    private void writeLong(long value) throws IOException {
+        reserve(8);
+        bytes.putLong(value);
+    }
+
+    private void writeString(String value) throws IOException {
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        reserve(4);
+        bytes.putInt(utf8.length);
+        int written = 0;
+        while (written < utf8.length) {
+            if (!bytes.hasRemaining()) {
+                drain();
+            }
+            int n = Math.min(bytes.remaining(), utf8.length - written);
+            bytes.put(utf8, written, n);
+            written += n;
+        }
+    }
+
+    private void reserve(int n) throws IOException {
+        if (bytes.remaining() < n) {
+            drain();
+        }
+    }
+
+    private void drain() throws IOException {
+        bytes.flip();
+        while (bytes.hasRemaining()) {
+            out.write(bytes);
+        }
+        bytes.clear();
+    }
+
+    /**
+     * 把缓冲的内容全部写出去
+     */
+    public void flush() throws IOException {
+        if (!binary) {
+            flushText();
+        }
+        drain();
+    }
+}
@@ -4,18 +4,71 @@ package tokenizer;
 
 import error.ErrorCode;
 import error.TokenizeError;
-import util.Pos;
 
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Map;
 
 public class Tokenizer {
 
     private StringIter it;
 
+    // 最近一次 lex() 得到的 token，直接按字段存着，
+    // TokenBuffer 从这里取值，不需要每个 token 都 new 一个 Token
+    TokenType curType;
+    // 运算符和关键字的值
+    Object curValue;
+    // 数字字面量的值，浮点数存的是 doubleToLongBits
+    long curNumber;
+    // token 在源码里的范围 [curStart, curEnd)，字符串和字符字面量包括引号
+    int curStart;
+    int curEnd;
+    // 报告的起止位置，也是偏移，要行号列号时再用 it.lines() 换算
+    int curStartPos;
+    int curEndPos;
+
+    // 注释的范围，两个一组 [start, end)，不包括行尾的 \n，只在 recordTrivia 打开时记录
+    private boolean recordTrivia = false;
+    private int[] trivia = new int[0];
+    private int triviaCount = 0;
+
     public Tokenizer(StringIter it) {
         this.it = it;
     }
 
+    StringIter getIter() {
+        return it;
+    }
+
+    /**
+     * 打开之后会把每条注释在源码里的范围记下来，给格式化之类的工具用
+     * <p>
+     * 空白不单独记录，token 和注释之间的空隙就是空白
+     */
+    public void setRecordTrivia(boolean recordTrivia) {
+        this.recordTrivia = recordTrivia;
+    }
+
+    /**
+     * 已经记录的注释条数
+     */
+    public int getTriviaCount() {
+        return triviaCount;
+    }
+
+    /**
+     * 第 i 条注释的起始偏移（包括 //）
+     */
+    public int getTriviaStart(int i) {
+        return trivia[2 * i];
+    }
+
+    /**
+     * 第 i 条注释的结束偏移（不包括行尾的 \n）
+     */
+    public int getTriviaEnd(int i) {
+        return trivia[2 * i + 1];
+    }
+
     // 这里本来是想实现 Iterator<Token> 的，但是 Iterator 不允许抛异常，于是就这样了
     /**
      * 获取下一个 Token
@@ -24,20 +77,50 @@ public class Tokenizer {
      * @throws TokenizeError 如果解析有异常则抛出
      */
     public Token nextToken() throws TokenizeError {
+        TokenType type = lex();
+        Token token;
+        if (type == TokenType.IDENT) {
+            token = new Token(type, it, curStart, curEnd - curStart, curStartPos, curEndPos);
+        } else if (type == TokenType.STRING_LITERAL) {
+            token = new Token(type, it, curStart + 1, curEnd - curStart - 2, curStartPos, curEndPos);
+        } else if (type == TokenType.UINT_LITERAL || type == TokenType.DOUBLE_LITERAL) {
+            token = new Token(type, curNumber, curStartPos, curEndPos, it);
+        } else {
+            token = new Token(type, curValue, curStartPos, curEndPos, it);
+        }
+        if (it.isStreaming()) {
+            // 流式读取时窗口会滑走，切片只能当场变成字符串
+            token.getValue();
+        }
+        it.clearMark();
+        return token;
+    }
+
+    /**
+     * 读入下一个 token，结果放在 cur* 字段里
+     * <p>
+     * 调用者用完字段之后要 it.clearMark()，在那之前 token 的原文一直留在缓冲区里
+     */
+    TokenType lex() throws TokenizeError {
         it.readAll();
 
-        // 跳过之前的所有空白字符
-        skipSpaceCharacters();
+        // 跳过之前的所有空白字符和注释
+        skipTrivia();
 
+        curStart = it.mark();
         if (it.isEOF()) {
-            return new Token(TokenType.EOF, "", it.currentPos(), it.currentPos());
+            return emit(TokenType.EOF, "", it.offset(), it.offset());
         }
 
+        // 查一次分类表就能决定走哪个分支
         char peek = it.peekChar();
-        if (Character.isDigit(peek)) {
-            return lexUIntorUdouble();
-        } else if (Character.isAlphabetic(peek)) {
+        int cls = CharClass.of(peek);
+        if ((cls & CharClass.IDENT_START) != 0) {
             return lexIdentOrKeyword();
+        } else if ((cls & CharClass.DIGIT) != 0) {
+            return lexUIntorUdouble();
+        } else if ((cls & CharClass.OPERATOR_START) != 0) {
+            return lexOperatorOrUnknown();
         } else if(peek=='\''){
             return lexCInt();
         } else if(peek=='\"'){
@@ -48,32 +131,82 @@ public class Tokenizer {
     }
 
 
-    private Token lexUIntorUdouble() throws TokenizeError {
-        String arr = "";
-        arr+=it.nextChar();
-        Pos startPos=it.currentPos();
-        TokenType type=TokenType.UINT_LITERAL;
-        while(Character.isDigit(it.peekChar())||it.peekChar()=='.'||it.peekChar()=='e'||it.peekChar()=='E'||it.peekChar()=='+'||it.peekChar()=='-'){
-            if(it.peekChar()=='.'){
-                type=TokenType.DOUBLE_LITERAL;
+    // 10 的 0~22 次方，这些都能用 double 精确表示
+    private static final double[] POW10 = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+    // 小于 2^53 的整数可以用 double 精确表示
+    private static final long MAX_EXACT = 1L << 53;
+
+    /**
+     * 数字字面量，按文法一遍扫过去：
+     * <p>
+     * UINT_LITERAL -> digit+
+     * <p>
+     * DOUBLE_LITERAL -> digit+ '.' digit+ ([eE] [+-]? digit+)?
+     * <p>
+     * 整数直接累加到 long 里，溢出报 IntegerOverflow；
+     * 浮点数在尾数和指数都不大时直接乘除 10 的幂（结果是正确舍入的），其它情况交给 Double.parseDouble
+     */
+    private TokenType lexUIntorUdouble() throws TokenizeError {
+        int start=curStart;
+        long value=CharClass.digit(it.nextChar());
+        int startPos=it.offset();
+        boolean overflow=false;
+        while(CharClass.isDigit(it.peekChar())){
+            int digit=CharClass.digit(it.nextChar());
+            if(value>(Long.MAX_VALUE-digit)/10){
+                overflow=true;
             }
-            else if(it.peekChar()=='e'||it.peekChar()=='E'||it.peekChar()=='-'||it.peekChar()=='+'){
-                if(type == TokenType.UINT_LITERAL){
-                    throw new TokenizeError(ErrorCode.InvalidInput, it.previousPos());
-                }
+            else{
+                value=value*10+digit;
             }
-            arr+=it.nextChar();
         }
-        Pos endPos=it.currentPos();
-        if(type==TokenType.UINT_LITERAL){
-            return new Token(TokenType.UINT_LITERAL, Long.valueOf(arr), startPos, endPos);
+        if(it.peekChar()!='.'){
+            if(overflow){
+                throw new TokenizeError(ErrorCode.IntegerOverflow, it.previousPos());
+            }
+            return emitNumber(TokenType.UINT_LITERAL, value, startPos, it.offset());
+        }
+        it.nextChar();
+        // 尾数是整数部分和小数部分拼起来的所有数字，exponent 是小数点往左移的位数
+        long mantissa=overflow?MAX_EXACT:value;
+        int exponent=0;
+        expectDigit();
+        while(CharClass.isDigit(it.peekChar())){
+            int digit=CharClass.digit(it.nextChar());
+            // 尾数超过 2^53 之后只能走慢路径，后面的数字不用再管了
+            if(mantissa<MAX_EXACT){
+                mantissa=mantissa*10+digit;
+                exponent--;
+            }
         }
-        else if(type==TokenType.DOUBLE_LITERAL){
-            return new Token(TokenType.DOUBLE_LITERAL, Double.doubleToLongBits(Double.valueOf(arr)), startPos, endPos);
+        if(it.peekChar()=='e'||it.peekChar()=='E'){
+            it.nextChar();
+            boolean negative=false;
+            if(it.peekChar()=='+'||it.peekChar()=='-'){
+                negative=it.nextChar()=='-';
+            }
+            expectDigit();
+            int e=0;
+            while(CharClass.isDigit(it.peekChar())){
+                int digit=CharClass.digit(it.nextChar());
+                // 指数再大也只会是 0 或者无穷，没必要继续累加
+                if(e<100000){
+                    e=e*10+digit;
+                }
+            }
+            exponent+=negative?-e:e;
+        }
+        int endPos=it.offset();
+        double result;
+        if(mantissa<MAX_EXACT&&exponent>=-22&&exponent<=22){
+            result=exponent<0?mantissa/POW10[-exponent]:mantissa*POW10[exponent];
         }
         else{
-            throw new TokenizeError(ErrorCode.InvalidInput, it.previousPos());
+            result=Double.parseDouble(it.substring(start,it.offset()));
         }
+        return emitNumber(TokenType.DOUBLE_LITERAL, Double.doubleToLongBits(result), startPos, endPos);
         // 请填空：
         // 直到查看下一个字符不是数字为止:
         // -- 前进一个字符，并存储这个字符
@@ -84,13 +217,23 @@ public class Tokenizer {
         // Token 的 Value 应填写数字的值
         //throw new Error("Not implemented");
     }
-    private Token lexCInt() throws TokenizeError {
+
+    /**
+     * 小数点和指数后面必须至少有一个数字
+     */
+    private void expectDigit() throws TokenizeError {
+        if(!CharClass.isDigit(it.peekChar())){
+            it.nextChar();
+            throw new TokenizeError(ErrorCode.InvalidInput, it.previousPos());
+        }
+    }
+    private TokenType lexCInt() throws TokenizeError {
         char ch=it.nextChar();
         char char_literal='\0';
         if(ch!='\''){
             throw new TokenizeError(ErrorCode.InvalidInput, it.previousPos());
         }
-        Pos startPos = it.currentPos();
+        int startPos=it.offset();
         ch = it.nextChar();
         if(ch=='\\'){
             char_literal=getescape();
@@ -102,41 +245,75 @@ public class Tokenizer {
         if(ch!='\''){
             throw new TokenizeError(ErrorCode.InvalidInput, it.previousPos());
         }
-        Pos endPos = it.currentPos();
-        return new Token(TokenType.UINT_LITERAL,(long)char_literal, startPos, endPos);
+        int endPos=it.offset();
+        return emitNumber(TokenType.UINT_LITERAL,char_literal, startPos, endPos);
     }
-    private Token lexString() throws TokenizeError {
-        String arr = "";
+    private TokenType lexString() throws TokenizeError {
         char ch=it.nextChar();
         if(ch!='\"'){
             throw new TokenizeError(ErrorCode.InvalidInput, it.previousPos());
         }
-        Pos startPos = it.currentPos();
-        boolean flag;
-        do{
-            flag=true;
+        int startPos=it.offset();
+        // 这里只检查转义是否合法，真正的字符串等到用到的时候再从切片里解出来
+        while(true){
             ch=it.nextChar();
             if(ch==0){
                 throw new TokenizeError(ErrorCode.InvalidInput, it.previousPos());
             }
             if(ch=='\\'){
-                ch=getescape();
-                flag=false;
-                arr=arr+ch;
+                getescape();
             }
-            if(ch!='\t'&&ch!='\n'&&ch!='\r'&&ch!='\"'&&ch!='\''&&ch!='\\'){
-                arr=arr+ch;
+            else if(ch=='\"'){
+                break;
             }
-        }while(!(ch=='\"'&&flag));
-        if(ch!='\"'){
-            throw new TokenizeError(ErrorCode.InvalidInput, it.previousPos());
         }
-        Pos endPos = it.currentPos();
-        return new Token(TokenType.STRING_LITERAL,arr, startPos, endPos);
+        int endPos=it.offset();
+        return emit(TokenType.STRING_LITERAL, null, startPos, endPos);
     }
+
+    private TokenType emit(TokenType type, Object value, int startPos, int endPos) {
+        curType=type;
+        curValue=value;
+        curEnd=it.offset();
+        curStartPos=startPos;
+        curEndPos=endPos;
+        return type;
+    }
+
+    private TokenType emitNumber(TokenType type, long number, int startPos, int endPos) {
+        curNumber=number;
+        return emit(type, null, startPos, endPos);
+    }
+
+    /**
+     * 把字符串字面量的原文解成它的值：处理转义，并且去掉原文里的制表符、换行和单引号
+     */
+    static String unescape(StringIter source, int start, int end) {
+        var sb=new StringBuilder(end-start);
+        for(int i=start;i<end;i++){
+            char ch=source.charAt(i);
+            if(ch=='\\'){
+                sb.append(escapeOf(source.charAt(++i)));
+            }
+            else if(ch!='\t'&&ch!='\n'&&ch!='\r'&&ch!='\''){
+                sb.append(ch);
+            }
+        }
+        return sb.toString();
+    }
+
     private char getescape() throws TokenizeError {
-        char ch;
-        ch=it.nextChar();
+        char ch=escapeOf(it.nextChar());
+        if(ch==0){
+            throw new TokenizeError(ErrorCode.InvalidInput, it.previousPos());
+        }
+        return ch;
+    }
+
+    /**
+     * @return 转义后的字符，不是合法的转义返回 0
+     */
+    private static char escapeOf(char ch) {
         if(ch=='\''){
             return '\'';
         }
@@ -153,7 +330,7 @@ public class Tokenizer {
             return '\\';
         }
         else{
-            throw new TokenizeError(ErrorCode.InvalidInput, it.previousPos());
+            return 0;
         }
     }
 //    FN_KW     ,//-> 'fn'
@@ -164,38 +341,99 @@ public class Tokenizer {
 //    IF_KW     ,//-> 'if'
 //    ELSE_KW   ,//-> 'else'
 //    RETURN_KW ,//-> 'return'
-    public final static HashMap<String,TokenType> keywordmap=new HashMap(){{
-        put("fn", TokenType.FN_KW);
-        put("let", TokenType.LET_KW);
-        put("const", TokenType.CONST_KW);
-        put("as", TokenType.AS_KW);
-        put("while", TokenType.WHILE_KW);
-        put("if", TokenType.IF_KW);
-        put("else", TokenType.ELSE_KW);
-        put("return", TokenType.RETURN_KW);
-        put("int",TokenType.INT);
-        put("void",TokenType.VOID);
-        put("break",TokenType.BREAK_KW);
-        put("continue",TokenType.CONTINUE_KW);
-        put("double",TokenType.DOUBLE);
-    }};
-
-    private Token lexIdentOrKeyword() throws TokenizeError {
-        String arr = "";
-        arr+=it.nextChar();
-        Pos startPos=it.currentPos();
-        while(Character.isDigit(it.peekChar())||Character.isAlphabetic(it.peekChar())||it.peekChar()=='_'){
-            arr+=it.nextChar();
-        }
-        Pos endPos=it.currentPos();
-        for(String key:keywordmap.keySet()){
-            if(arr.equals(key)){
-                return new Token(keywordmap.get(key), arr, startPos, endPos);
-            }
+    public final static Map<String,TokenType> keywordmap=Map.ofEntries(
+            Map.entry("fn", TokenType.FN_KW),
+            Map.entry("let", TokenType.LET_KW),
+            Map.entry("const", TokenType.CONST_KW),
+            Map.entry("as", TokenType.AS_KW),
+            Map.entry("while", TokenType.WHILE_KW),
+            Map.entry("if", TokenType.IF_KW),
+            Map.entry("else", TokenType.ELSE_KW),
+            Map.entry("return", TokenType.RETURN_KW),
+            Map.entry("int",TokenType.INT),
+            Map.entry("void",TokenType.VOID),
+            Map.entry("break",TokenType.BREAK_KW),
+            Map.entry("continue",TokenType.CONTINUE_KW),
+            Map.entry("double",TokenType.DOUBLE));
+
+    private TokenType lexIdentOrKeyword() throws TokenizeError {
+        int start=curStart;
+        it.nextChar();
+        int startPos=it.offset();
+        while(CharClass.isIdentPart(it.peekChar())){
+            it.nextChar();
         }
-        return new Token(TokenType.IDENT, arr, startPos, endPos);
+        int endPos=it.offset();
+        int end=it.offset();
+        String keyword=matchKeyword(start,end-start);
+        if(keyword!=null){
+            return emit(keywordmap.get(keyword), keyword, startPos, endPos);
+        }
+        return emit(TokenType.IDENT, null, startPos, endPos);
 
     }
+
+    /**
+     * 先按长度再按首字母分派，直接和缓冲区里的原文比较，不构造字符串
+     *
+     * @return 匹配到的关键字（keywordmap 里的 key），不是关键字返回 null
+     */
+    private String matchKeyword(int start, int len) {
+        String candidate;
+        switch (len) {
+            case 2:
+                switch (it.charAt(start)) {
+                    case 'f': candidate = "fn"; break;
+                    case 'a': candidate = "as"; break;
+                    case 'i': candidate = "if"; break;
+                    default: return null;
+                }
+                break;
+            case 3:
+                switch (it.charAt(start)) {
+                    case 'l': candidate = "let"; break;
+                    case 'i': candidate = "int"; break;
+                    default: return null;
+                }
+                break;
+            case 4:
+                switch (it.charAt(start)) {
+                    case 'e': candidate = "else"; break;
+                    case 'v': candidate = "void"; break;
+                    default: return null;
+                }
+                break;
+            case 5:
+                switch (it.charAt(start)) {
+                    case 'c': candidate = "const"; break;
+                    case 'w': candidate = "while"; break;
+                    case 'b': candidate = "break"; break;
+                    default: return null;
+                }
+                break;
+            case 6:
+                switch (it.charAt(start)) {
+                    case 'r': candidate = "return"; break;
+                    case 'd': candidate = "double"; break;
+                    default: return null;
+                }
+                break;
+            case 8:
+                if (it.charAt(start) != 'c') {
+                    return null;
+                }
+                candidate = "continue";
+                break;
+            default:
+                return null;
+        }
+        for (int i = 1; i < len; i++) {
+            if (it.charAt(start + i) != candidate.charAt(i)) {
+                return null;
+            }
+        }
+        return candidate;
+    }
 //    PLUS    ,// -> '+'
 //    MINUS   , //-> '-'
 //    MUL     , //-> '*'
@@ -215,92 +453,84 @@ public class Tokenizer {
 //    COMMA   , //-> ','
 //    COLON   , //-> ':'
 //    SEMICOLO, //-> ';'
-    private Token lexOperatorOrUnknown() throws TokenizeError {
+    private TokenType lexOperatorOrUnknown() throws TokenizeError {
         char ch=it.nextChar();
-        Pos prePos=it.previousPos();
+        int prePos=it.offset()-1;
         if(ch=='+'){
-            return new Token(TokenType.PLUS, '+', it.previousPos(), it.currentPos());
+            return emit(TokenType.PLUS, '+', it.offset()-1, it.offset());
         }
         else if(ch=='-'){
             if(it.peekChar()=='>'){
                 ch=it.nextChar();
-                Pos cuPos=it.currentPos();
-                return new Token(TokenType.ARROW, "->", prePos, cuPos);
+                int cuPos=it.offset();
+                return emit(TokenType.ARROW, "->", prePos, cuPos);
             }
             else{
-                return new Token(TokenType.MINUS, '-', it.previousPos(), it.currentPos());
+                return emit(TokenType.MINUS, '-', it.offset()-1, it.offset());
             }
         }
         else if(ch=='*'){
-            return new Token(TokenType.MUL, '*', it.previousPos(), it.currentPos());
+            return emit(TokenType.MUL, '*', it.offset()-1, it.offset());
         }
         else if(ch=='/'){
-            if(it.peekChar()=='/'){
-                while(ch!='\n'){
-                    ch=it.nextChar();
-                }
-                return nextToken();
-            }
-            else{
-                return new Token(TokenType.DIV, '/', it.previousPos(), it.currentPos());
-            }
-
+            // 注释已经在 skipTrivia() 里跳过了，这里只会是除号
+            return emit(TokenType.DIV, '/', it.offset()-1, it.offset());
         }
         else if(ch=='='){
             if(it.peekChar()=='='){
                 ch=it.nextChar();
-                Pos cuPos=it.currentPos();
-                return new Token(TokenType.EQ, "==", prePos, cuPos);
+                int cuPos=it.offset();
+                return emit(TokenType.EQ, "==", prePos, cuPos);
             }
             else{
-                return new Token(TokenType.ASSIGN, '=', it.previousPos(), it.currentPos());
+                return emit(TokenType.ASSIGN, '=', it.offset()-1, it.offset());
             }
         }
         else if(ch=='!'&&it.peekChar()=='='){
             ch=it.nextChar();
-            Pos cuPos=it.currentPos();
-            return new Token(TokenType.NEQ, "!=", prePos, cuPos);
+            int cuPos=it.offset();
+            return emit(TokenType.NEQ, "!=", prePos, cuPos);
         }
         else if(ch=='<'){
             if(it.peekChar()=='='){
                 ch=it.nextChar();
-                Pos cuPos=it.currentPos();
-                return new Token(TokenType.LE, "<=", prePos, cuPos);
+                int cuPos=it.offset();
+                return emit(TokenType.LE, "<=", prePos, cuPos);
             }
             else{
-                return new Token(TokenType.LT, '<', it.previousPos(), it.currentPos());
+                return emit(TokenType.LT, '<', it.offset()-1, it.offset());
             }
         }
         else if(ch=='>'){
             if(it.peekChar()=='='){
                 ch=it.nextChar();
-                Pos cuPos=it.currentPos();
-                return new Token(TokenType.GE, ">=", prePos, cuPos);
+                int cuPos=it.offset();
+                return emit(TokenType.GE, ">=", prePos, cuPos);
             }
             else{
-                return new Token(TokenType.GT, '>', it.previousPos(), it.currentPos());
+                return emit(TokenType.GT, '>', it.offset()-1, it.offset());
             }
         }
         else if(ch=='('){
-            return new Token(TokenType.L_PAREN, '(', it.previousPos(), it.currentPos());
+            return emit(TokenType.L_PAREN, '(', it.offset()-1, it.offset());
         }
         else if(ch==')'){
-            return new Token(TokenType.R_PAREN, ')', it.previousPos(), it.currentPos());
+            return emit(TokenType.R_PAREN, ')', it.offset()-1, it.offset());
         }
         else if(ch=='{'){
-            return new Token(TokenType.L_BRACE, '{', it.previousPos(), it.currentPos());
+            return emit(TokenType.L_BRACE, '{', it.offset()-1, it.offset());
         }
         else if(ch=='}'){
-            return new Token(TokenType.R_BRACE, '}', it.previousPos(), it.currentPos());
+            return emit(TokenType.R_BRACE, '}', it.offset()-1, it.offset());
         }
         else if(ch==','){
-            return new Token(TokenType.COMMA, ',', it.previousPos(), it.currentPos());
+            return emit(TokenType.COMMA, ',', it.offset()-1, it.offset());
         }
         else if(ch==':'){
-            return new Token(TokenType.COLON, ':', it.previousPos(), it.currentPos());
+            return emit(TokenType.COLON, ':', it.offset()-1, it.offset());
         }
         else if(ch==';'){
-            return new Token(TokenType.SEMICOLON, ';', it.previousPos(), it.currentPos());
+            return emit(TokenType.SEMICOLON, ';', it.offset()-1, it.offset());
         }
         else{
             throw new TokenizeError(ErrorCode.InvalidInput, it.previousPos());
@@ -333,9 +563,33 @@ public class Tokenizer {
 //        }
     }
 
-    private void skipSpaceCharacters() {
-        while (!it.isEOF() && Character.isWhitespace(it.peekChar())) {
-            it.nextChar();
+    /**
+     * 在一个循环里跳过连续的空白和 // 注释，跳完之后指针指向下一个 token 的开头或者 EOF
+     */
+    private void skipTrivia() {
+        while (true) {
+            it.skipWhitespace();
+            if (it.peekChar() != '/' || it.peekChar(1) != '/') {
+                return;
+            }
+            int start = it.offset();
+            it.skipLine();
+            if (recordTrivia) {
+                int end = it.offset();
+                if (it.charAt(end - 1) == '\n') {
+                    end--;
+                }
+                addTrivia(start, end);
+            }
+        }
+    }
+
+    private void addTrivia(int start, int end) {
+        if (2 * triviaCount + 2 > trivia.length) {
+            trivia = Arrays.copyOf(trivia, Math.max(16, trivia.length * 2));
         }
+        trivia[2 * triviaCount] = start;
+        trivia[2 * triviaCount + 1] = end;
+        triviaCount++;
     }
 }
@@ -0,0 +1,34 @@
+package util;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * 编译结果缓存和增量编译算键用的哈希
+ */
+public final class Hashing {
+    private Hashing() {
+    }
+
+    /**
+     * 新的 SHA-256，每个 JVM 都必须支持，拿不到时是环境坏了
+     */
+    public static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 小写十六进制
+     */
+    public static String hex(byte[] bytes) {
+        var text = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            text.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,154 @@
+package util;
+
+import java.util.Arrays;
+
+/**
+ * 行首偏移表：第 i 行从源码的 starts[i] 开始
+ * <p>
+ * 源码里的位置平时只用一个 int 偏移表示，要报错或者输出的时候才用二分查找算出行号和列号
+ * <p>
+ * 流式读取时用 discardBefore 丢掉窗口外面的行，表的大小只和窗口有关，行号还是从文件开头数的。
+ * 用 addLine(row, start) 加进来的表是稀疏的，只记了一部分行，只能换算落在这些行上的偏移。
+ */
+public class LineIndex {
+    /** 没有源码位置，例如预先放进符号表的库函数 */
+    public static final int NONE = -1;
+
+    private int[] starts = new int[64];
+    // 稀疏的表里每一项的行号，null 表示第 i 项就是第 firstRow + i 行
+    private int[] rows = null;
+    private int count = 1;
+    // 表里第一项的行号，前面的行被 discardBefore 丢掉了
+    private int firstRow = 0;
+
+    /**
+     * 第 0 行总是从偏移 0 开始，之后的行用 addLine 加进来
+     */
+    public LineIndex() {
+    }
+
+    /**
+     * 空的稀疏表，用 addLine(row, start) 加行
+     */
+    public static LineIndex sparse() {
+        var index = new LineIndex();
+        index.rows = new int[index.starts.length];
+        index.count = 0;
+        return index;
+    }
+
+    /**
+     * 扫一遍 buffer 的前 length 个字符，建好整张表
+     */
+    public static LineIndex of(char[] buffer, int length) {
+        var index = new LineIndex();
+        for (int i = 0; i < length; i++) {
+            if (buffer[i] == '\n') {
+                index.addLine(i + 1);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * 加一个新行，start 是这一行第一个字符的偏移，必须按顺序加
+     */
+    public void addLine(int start) {
+        if (count == starts.length) {
+            starts = Arrays.copyOf(starts, count * 2);
+        }
+        starts[count++] = start;
+    }
+
+    /**
+     * 往稀疏的表里加第 row 行，行号必须比表里已有的大
+     */
+    public void addLine(int row, int start) {
+        if (count == starts.length) {
+            starts = Arrays.copyOf(starts, count * 2);
+            rows = Arrays.copyOf(rows, count * 2);
+        }
+        rows[count] = row;
+        starts[count++] = start;
+    }
+
+    /**
+     * 丢掉 offset 所在的行前面的行，之后不能再换算比这一行更早的偏移
+     */
+    public void discardBefore(int offset) {
+        int keep = indexOf(offset);
+        if (keep == 0) {
+            return;
+        }
+        System.arraycopy(starts, keep, starts, 0, count - keep);
+        count -= keep;
+        firstRow += keep;
+    }
+
+    /**
+     * 表里还留着的第一行的行号
+     */
+    public int firstRow() {
+        return firstRow;
+    }
+
+    public int lineCount() {
+        if (rows == null) {
+            return firstRow + count;
+        }
+        return count == 0 ? 0 : rows[count - 1] + 1;
+    }
+
+    public int lineStart(int row) {
+        if (rows != null) {
+            int i = Arrays.binarySearch(rows, 0, count, row);
+            if (i < 0) {
+                throw new Error("line " + row + " is not in the index");
+            }
+            return starts[i];
+        }
+        if (row < firstRow) {
+            throw new Error("line " + row + " has been discarded");
+        }
+        return starts[row - firstRow];
+    }
+
+    /**
+     * 偏移所在的行号
+     */
+    public int rowOf(int offset) {
+        int i = indexOf(offset);
+        return rows == null ? firstRow + i : rows[i];
+    }
+
+    /**
+     * 偏移对应的位置，NONE 返回 null
+     */
+    public Pos pos(int offset) {
+        if (offset == NONE) {
+            return null;
+        }
+        int i = indexOf(offset);
+        return new Pos(rows == null ? firstRow + i : rows[i], offset - starts[i]);
+    }
+
+    /**
+     * 偏移所在的那一项的下标
+     */
+    private int indexOf(int offset) {
+        if (count == 0 || offset < starts[0]) {
+            throw new Error("offset " + offset + " is before the first line in the index");
+        }
+        int lo = 0;
+        int hi = count - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (starts[mid] <= offset) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+}